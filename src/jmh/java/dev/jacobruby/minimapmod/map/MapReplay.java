@@ -0,0 +1,325 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.Block;
+import net.minecraft.init.Bootstrap;
+import net.minecraft.world.ChunkCoordIntPair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Replays a {@link MapRecorder} recording without the game, through {@link MiniMapData} as the client scans every tick,
+ * and reports how long every frame took. Every frame is compared byte for byte with the golden images of the recording,
+ * its colors and the texture colors the renderer would take from it. Golden images are made by replaying in the
+ * reference mode, synchronous and without direct colors. Scans have no time budget, so every frame is complete.
+ * <p>
+ * Run with {@code gradlew replay -Precording=<file>}, adding {@code -Pmode=<sync|async|direct|async-direct>} to replay
+ * in another mode, or {@code -Pgolden} to write the golden images next to the recording. Frame times are written to a
+ * CSV file next to it as well.
+ */
+public class MapReplay {
+    static {
+        /* Registers the blocks and their map colors */
+        Bootstrap.register();
+    }
+
+    /* "MMG1", followed by the resolution and colors of every frame */
+    private static final int GOLDEN_MAGIC = 0x4D4D4731;
+
+    private final MiniMapData mapData = new MiniMapData();
+
+    /* Every chunk of the recording so far, by packed chunk coordinates. Only changed between scans */
+    private final Map<Long, ChunkSnapshot> chunks = new HashMap<>();
+    private final MapChunkSource source = new MapChunkSource() {
+        @Override
+        public MapChunk getChunk(int chunkX, int chunkZ) {
+            return MapReplay.this.chunks.getOrDefault(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ),
+                    ChunkSnapshot.EMPTY);
+        }
+
+        @Override
+        public boolean isConcurrent() {
+            return true;
+        }
+    };
+
+    /* Block state ids of this game by the ids of the recording, air for blocks this game doesn't have */
+    private final char[] stateIds = new char[1 << 16];
+
+    /* The texture colors the renderer would upload, and the ones the golden colors convert to */
+    private MapFrame textureFrame = new MapFrame(128);
+    private MapFrame goldenFrame = new MapFrame(128);
+
+    private long[] frameNanos = new long[1024];
+    private int frames;
+    private int differentFrames;
+
+    private MapReplay(boolean async, boolean direct) {
+        this.mapData.setAsync(async);
+        this.mapData.setDirectColors(direct);
+        this.mapData.setScanBudget(0);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args[0].isEmpty()) {
+            System.err.println("Usage: MapReplay <recording> [sync|async|direct|async-direct] [--golden]");
+            System.exit(2);
+        }
+
+        File recording = new File(args[0]);
+        String mode = args.length > 1 && !args[1].startsWith("--") ? args[1] : "sync";
+        boolean writeGolden = Arrays.asList(args).contains("--golden");
+        File golden = new File(recording.getPath() + ".golden");
+
+        if (!Arrays.asList("sync", "async", "direct", "async-direct").contains(mode)) {
+            System.err.println("Unknown mode " + mode);
+            System.exit(2);
+        }
+
+        if (writeGolden && !mode.equals("sync")) {
+            System.err.println("Golden images are made in the sync mode");
+            System.exit(2);
+        }
+
+        MapReplay replay = new MapReplay(mode.startsWith("async"), mode.endsWith("direct"));
+
+        if (writeGolden) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(golden))))) {
+                out.writeInt(GOLDEN_MAGIC);
+                replay.run(recording, null, out);
+            }
+
+            System.out.println("Wrote golden images of " + replay.frames + " frames to " + golden);
+        } else if (golden.isFile()) {
+            try (DataInputStream in = open(golden)) {
+                if (in.readInt() != GOLDEN_MAGIC) {
+                    throw new IOException("Not golden images of a recording: " + golden);
+                }
+
+                replay.run(recording, in, null);
+            }
+        } else {
+            System.out.println("No golden images, replaying without comparing. Make them with -Pgolden");
+            replay.run(recording, null, null);
+        }
+
+        replay.report(new File(recording.getPath() + "." + mode + ".csv"));
+
+        if (replay.differentFrames > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+    }
+
+    /**
+     * Replays every frame of a recording.
+     *
+     * @param golden the golden images to compare with, null to compare nothing.
+     * @param goldenOut receives the colors of every frame as golden images, null to write nothing.
+     */
+    private void run(File recording, DataInputStream golden, DataOutputStream goldenOut) throws IOException {
+        try (DataInputStream in = open(recording)) {
+            if (in.readInt() != MapRecorder.MAGIC) {
+                throw new IOException("Not a mini-map recording: " + recording);
+            }
+
+            int type;
+
+            while ((type = in.read()) >= 0) {
+                switch (type) {
+                    case MapRecorder.STATE:
+                        char id = in.readChar();
+                        Block block = Block.getBlockFromName(in.readUTF());
+                        this.stateIds[id] = block != null ? (char) (Block.getIdFromBlock(block) << 4 | id & 15) : 0;
+                        break;
+                    case MapRecorder.CHUNK:
+                        this.readChunk(in);
+                        break;
+                    case MapRecorder.FRAME:
+                        this.replayFrame(in);
+
+                        if (golden != null) {
+                            this.compare(golden);
+                        }
+
+                        if (goldenOut != null) {
+                            goldenOut.writeShort(this.mapData.getResolution());
+                            goldenOut.write(this.mapData.colors);
+                        }
+
+                        break;
+                    default:
+                        throw new IOException("Unknown record " + type + " in " + recording);
+                }
+            }
+        } catch (EOFException e) {
+            /* The game stopped before the recording was finished, every complete frame was replayed */
+            System.out.println("The recording ends early, after " + this.frames + " frames");
+        }
+    }
+
+    private void readChunk(DataInputStream in) throws IOException {
+        int chunkX = in.readInt();
+        int chunkZ = in.readInt();
+        ChunkSnapshot snapshot = new ChunkSnapshot().read(in, chunkX, chunkZ, this.stateIds);
+
+        if (this.chunks.put(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ), snapshot) != null) {
+            /* As the client does when a chunk changes */
+            this.mapData.markRangeDirty(chunkX << 4, chunkZ << 4, (chunkX << 4) + 15, (chunkZ << 4) + 15);
+        }
+    }
+
+    private void replayFrame(DataInputStream in) throws IOException {
+        int resolution = in.readShort();
+        int x = in.readInt();
+        int z = in.readInt();
+        boolean cave = in.readBoolean();
+        int ground = in.readShort();
+        int caveHeight = in.readShort();
+
+        this.mapData.setResolution(resolution);
+
+        long start = System.nanoTime();
+        this.mapData.replay(this.source, x, z, cave, ground, caveHeight);
+        this.mapData.finishScan();
+        this.postTextureData();
+        long nanos = System.nanoTime() - start;
+
+        if (this.frames == this.frameNanos.length) {
+            this.frameNanos = Arrays.copyOf(this.frameNanos, this.frames * 2);
+        }
+
+        this.frameNanos[this.frames++] = nanos;
+    }
+
+    /**
+     * Takes the texture colors of the map like {@link MiniMapRenderer#postTextureData}, which needs the game.
+     */
+    private void postTextureData() {
+        int resolution = this.mapData.getResolution();
+
+        if (this.textureFrame.size != resolution) {
+            this.textureFrame = new MapFrame(resolution);
+        }
+
+        MapFrame frame = this.mapData.getFrame();
+
+        if (frame != null) {
+            this.textureFrame.copyDirty(frame);
+        } else {
+            this.textureFrame.setColors(this.mapData.colors, this.originX(), this.originZ());
+        }
+
+        this.textureFrame.clearDirty();
+    }
+
+    private int originX() {
+        return this.mapData.xCenter / (1 << this.mapData.scale) - this.mapData.getResolution() / 2;
+    }
+
+    private int originZ() {
+        return this.mapData.zCenter / (1 << this.mapData.scale) - this.mapData.getResolution() / 2;
+    }
+
+    private void compare(DataInputStream golden) throws IOException {
+        int resolution;
+        byte[] colors;
+
+        try {
+            resolution = golden.readShort();
+            colors = new byte[resolution * resolution];
+            golden.readFully(colors);
+        } catch (EOFException e) {
+            this.differ("has no golden image, they were made of a shorter recording");
+            return;
+        }
+
+        if (resolution != this.mapData.getResolution()) {
+            this.differ("is " + this.mapData.getResolution() + " pixels wide rather than " + resolution);
+            return;
+        }
+
+        int differentColors = 0;
+
+        for (int i = 0; i < colors.length; ++i) {
+            if (colors[i] != this.mapData.colors[i]) {
+                ++differentColors;
+            }
+        }
+
+        if (this.goldenFrame.size != resolution) {
+            this.goldenFrame = new MapFrame(resolution);
+        }
+
+        this.goldenFrame.setColors(colors, this.originX(), this.originZ());
+        int differentTexels = 0;
+
+        for (int y = 0; y < resolution; ++y) {
+            for (int x = 0; x < resolution; ++x) {
+                if (this.goldenFrame.get(x, y) != this.textureFrame.get(x, y)) {
+                    ++differentTexels;
+                }
+            }
+        }
+
+        if (differentColors > 0 || differentTexels > 0) {
+            this.differ("has " + differentColors + " different colors and " + differentTexels + " different texels");
+        }
+    }
+
+    private void differ(String message) {
+        /* The first few are enough to go on */
+        if (this.differentFrames++ < 10) {
+            System.out.println("Frame " + (this.frames - 1) + " " + message);
+        }
+    }
+
+    /**
+     * Prints the frame times and the frames that differ, and writes the time of every frame to a CSV file.
+     */
+    private void report(File csv) throws IOException {
+        try (Writer writer = new FileWriter(csv)) {
+            writer.write("frame,ms\n");
+
+            for (int n = 0; n < this.frames; ++n) {
+                writer.write(n + "," + this.frameNanos[n] / 1e6 + "\n");
+            }
+        }
+
+        long[] sorted = Arrays.copyOf(this.frameNanos, this.frames);
+        Arrays.sort(sorted);
+        long total = 0L;
+
+        for (long nanos : sorted) {
+            total += nanos;
+        }
+
+        if (this.frames > 0) {
+            System.out.printf("%d frames, mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms%n", this.frames,
+                    total / 1e6 / this.frames, sorted[this.frames / 2] / 1e6, sorted[this.frames * 99 / 100] / 1e6,
+                    sorted[this.frames - 1] / 1e6);
+        }
+
+        System.out.println(this.differentFrames == 0 ? "Every frame matches" : this.differentFrames + " of "
+                + this.frames + " frames differ");
+        System.out.println("Frame times written to " + csv);
+    }
+}
@@ -0,0 +1,83 @@
+package dev.jacobruby.minimapmod.map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two ways {@code MiniMapRenderer.postTextureData} fills the texture frame: converting every map color byte, or
+ * copying the changed pixels of a frame the scan wrote directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaletteBenchmark {
+    @Param({"FLAT", "MOUNTAINS", "OCEAN", "NETHER", "END"})
+    public SyntheticWorld.Profile profile;
+
+    @Param({"128", "256"})
+    public int resolution;
+
+    private byte[] colors;
+    private MapFrame scanFrame;
+    private MapFrame textureFrame;
+
+    private int x0;
+
+    @Setup
+    public void setUp() {
+        int half = this.resolution / 2;
+
+        ScanJob job = new ScanJob();
+        job.resolution = this.resolution;
+        job.dirty = new int[MapScanner.cacheSize(this.resolution)];
+        job.originX = -half;
+        job.originZ = -half - 1;
+        job.cave = this.profile.cave;
+        job.ground = 64;
+        job.caveHeight = this.profile.cave ? 96 : 64;
+        job.surfaceCacheChunks = 1024;
+        job.caveCacheChunks = 256;
+        job.source = new SyntheticWorld(this.profile);
+
+        this.colors = new byte[this.resolution * this.resolution];
+        this.scanFrame = new MapFrame(this.resolution);
+        this.textureFrame = new MapFrame(this.resolution);
+
+        new MapScanner().scan(job, this.colors, this.scanFrame);
+    }
+
+    /**
+     * Converts every color byte, each time one sample further along x like a scrolling map.
+     */
+    @Benchmark
+    public MapFrame convertColors() {
+        this.textureFrame.setColors(this.colors, ++this.x0, -this.resolution / 2 - 1);
+        this.textureFrame.clearDirty();
+        return this.textureFrame;
+    }
+
+    /**
+     * Copies a frame whose every pixel changed, the most a tick of direct colors copies.
+     */
+    @Benchmark
+    public MapFrame copyFrame() {
+        this.scanFrame.markAllDirty();
+        this.textureFrame.copyDirty(this.scanFrame);
+        this.textureFrame.clearDirty();
+        return this.textureFrame;
+    }
+}
@@ -0,0 +1,111 @@
+package dev.jacobruby.minimapmod.map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans of the {@link SyntheticWorld} profiles, the work behind {@code MiniMapData.update}. A full scan is the first
+ * scan of a new scanner, as after joining or a teleport, a scrolling scan is a scan after the viewer moved one block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    /* How far the scrolling scan walks before it turns around, every chunk on the way is generated in the setup */
+    private static final int WALK = 256;
+
+    @Param({"FLAT", "MOUNTAINS", "OCEAN", "NETHER", "END"})
+    public SyntheticWorld.Profile profile;
+
+    @Param({"128", "256"})
+    public int resolution;
+
+    private SyntheticWorld world;
+    private MapScanner scanner;
+    private ScanJob job;
+    private byte[] colors;
+    private MapFrame frame;
+
+    private int x;
+    private int step = 1;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        this.world = new SyntheticWorld(this.profile);
+        this.colors = new byte[this.resolution * this.resolution];
+        this.frame = new MapFrame(this.resolution);
+        this.job = new ScanJob();
+        this.job.resolution = this.resolution;
+        this.job.dirty = new int[MapScanner.cacheSize(this.resolution)];
+        this.job.cave = this.profile.cave;
+        this.job.ground = 64;
+        this.job.caveHeight = this.profile.cave ? 96 : 64;
+        this.job.surfaceCacheChunks = 1024;
+        this.job.caveCacheChunks = 256;
+        this.job.source = this.world;
+
+        /* Generate the chunks of the whole walk */
+        for (int x = 0; x <= WALK; x += 16) {
+            this.moveTo(x);
+            new MapScanner().scan(this.job, this.colors, null);
+        }
+
+        this.moveTo(0);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        this.scanner = new MapScanner();
+        this.scanner.scan(this.job, this.colors, this.frame);
+    }
+
+    private void moveTo(int x) {
+        int half = this.resolution / 2;
+
+        this.x = x;
+        this.job.xCenter = x;
+        this.job.zCenter = 0;
+        this.job.originX = x - half;
+        this.job.originZ = -half - 1;
+    }
+
+    /**
+     * Scans every column of the map with a new scanner, including allocating its caches.
+     */
+    @Benchmark
+    public byte[] fullScan() {
+        new MapScanner().scan(this.job, this.colors, this.frame);
+        this.frame.clearDirty();
+        return this.colors;
+    }
+
+    /**
+     * Moves the viewer one block along x and scans the column that scrolled into view, then shades every pixel.
+     */
+    @Benchmark
+    public byte[] scrollingScan() {
+        if (this.x + this.step < 0 || this.x + this.step > WALK) {
+            this.step = -this.step;
+        }
+
+        this.moveTo(this.x + this.step);
+        this.scanner.scan(this.job, this.colors, this.frame);
+        this.frame.clearDirty();
+        return this.colors;
+    }
+}
@@ -0,0 +1,172 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.init.Bootstrap;
+import net.minecraft.world.ChunkCoordIntPair;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generated terrain for the benchmarks, served as {@link MapChunk}s without a Minecraft world. Chunks are generated
+ * when first requested and kept, so benchmarks should request theirs in their setup.
+ */
+class SyntheticWorld implements MapChunkSource {
+    static {
+        /* Registers the blocks and their map colors */
+        Bootstrap.register();
+    }
+
+    /**
+     * The kinds of terrain the scan meets.
+     */
+    enum Profile {
+        /* Grass at the same height everywhere */
+        FLAT(false),
+        /* Steep hills with snowy tops, so neighbouring columns differ a lot in height */
+        MOUNTAINS(false),
+        /* Deep water over sand, so every column scans through liquid */
+        OCEAN(false),
+        /* Netherrack with caverns and a lava sea, scanned in cave mode */
+        NETHER(true),
+        /* An island in the void, most columns fall through the world */
+        END(false);
+
+        final boolean cave;
+
+        Profile(boolean cave) {
+            this.cave = cave;
+        }
+    }
+
+    /* Palette of the generated blocks, chunks hold indices into it */
+    private static final IBlockState[] PALETTE = {
+            Blocks.air.getDefaultState(),
+            Blocks.bedrock.getDefaultState(),
+            Blocks.stone.getDefaultState(),
+            Blocks.dirt.getDefaultState(),
+            Blocks.grass.getDefaultState(),
+            Blocks.snow.getDefaultState(),
+            Blocks.sand.getDefaultState(),
+            Blocks.water.getDefaultState(),
+            Blocks.netherrack.getDefaultState(),
+            Blocks.lava.getDefaultState(),
+            Blocks.end_stone.getDefaultState()
+    };
+
+    private static final byte AIR = 0, BEDROCK = 1, STONE = 2, DIRT = 3, GRASS = 4, SNOW = 5, SAND = 6, WATER = 7,
+            NETHERRACK = 8, LAVA = 9, END_STONE = 10;
+
+    final Profile profile;
+
+    private final Map<Long, Chunk> chunks = new HashMap<>();
+
+    SyntheticWorld(Profile profile) {
+        this.profile = profile;
+    }
+
+    @Override
+    public MapChunk getChunk(int chunkX, int chunkZ) {
+        return this.chunks.computeIfAbsent(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ),
+                key -> new Chunk(this.profile, chunkX, chunkZ));
+    }
+
+    /**
+     * @return a repeatable pseudo random number for the given position.
+     */
+    private static int hash(int x, int y, int z) {
+        int hash = x * 73856093 ^ y * 83492791 ^ z * 19349663;
+        hash ^= hash >>> 13;
+        hash *= 0x5BD1E995;
+        return hash ^ hash >>> 15;
+    }
+
+    private static byte block(Profile profile, int x, int y, int z) {
+        if (y == 0 && profile != Profile.END) {
+            return BEDROCK;
+        }
+
+        switch (profile) {
+            case FLAT:
+                return y < 60 ? STONE : y < 63 ? DIRT : y == 63 ? GRASS : AIR;
+            case MOUNTAINS: {
+                int height = 80 + (int) (30 * Math.sin(x / 23D) * Math.cos(z / 31D) + 10 * Math.sin(z / 7D))
+                        + (hash(x, 0, z) & 3);
+
+                if (y > height) {
+                    return AIR;
+                }
+
+                return y < height - 3 ? STONE : y < height ? DIRT : height > 100 ? SNOW : GRASS;
+            }
+            case OCEAN: {
+                int floor = 30 + (int) (8 * Math.sin(x / 17D) + 6 * Math.cos(z / 13D));
+                return y < floor ? STONE : y == floor ? SAND : y <= 62 ? WATER : AIR;
+            }
+            case NETHER:
+                if (y >= 127) {
+                    return y == 127 ? BEDROCK : AIR;
+                }
+
+                if ((hash(x >> 2, y >> 2, z >> 2) & 7) < 3) {
+                    return y < 32 ? LAVA : AIR;
+                }
+
+                return NETHERRACK;
+            case END: {
+                /* Squared distance from the island's center */
+                int distance = x * x + z * z;
+                return distance < 80 * 80 && y >= 40 + distance / 400 && y <= 60 ? END_STONE : AIR;
+            }
+            default:
+                throw new IllegalArgumentException(profile.name());
+        }
+    }
+
+    private static class Chunk implements MapChunk {
+        /* Palette indices by (y << 8 | z << 4 | x) */
+        private final byte[] blocks = new byte[256 * 256];
+        private final int[] heightMap = new int[256];
+        private int present;
+
+        private Chunk(Profile profile, int chunkX, int chunkZ) {
+            for (int z = 0; z < 16; ++z) {
+                for (int x = 0; x < 16; ++x) {
+                    for (int y = 0; y < 256; ++y) {
+                        byte block = block(profile, chunkX << 4 | x, y, chunkZ << 4 | z);
+                        this.blocks[y << 8 | z << 4 | x] = block;
+
+                        if (block != AIR) {
+                            this.present |= 1 << (y >> 4);
+                        }
+
+                        if (PALETTE[block].getBlock().getLightOpacity() != 0) {
+                            this.heightMap[z << 4 | x] = y + 1;
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public int getHeightValue(int x, int z) {
+            return this.heightMap[z << 4 | x];
+        }
+
+        @Override
+        public boolean isSectionEmpty(int section) {
+            return (this.present & 1 << section) == 0;
+        }
+
+        @Override
+        public IBlockState getBlockState(int x, int y, int z) {
+            return y < 0 || y > 255 ? PALETTE[AIR] : PALETTE[this.blocks[y << 8 | z << 4 | x]];
+        }
+    }
+}
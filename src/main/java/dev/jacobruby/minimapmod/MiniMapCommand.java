@@ -0,0 +1,223 @@
+package dev.jacobruby.minimapmod;
+
+import dev.jacobruby.minimapmod.map.MapMarkers;
+import dev.jacobruby.minimapmod.map.MapRecorder;
+import net.minecraft.client.Minecraft;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.ChatComponentText;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Client command to change the mini-map settings while playing, to manage waypoints, to record what the mini-map scans
+ * and to export the explored area as images. Changes are saved to the configuration file and take effect on the next
+ * tick.
+ */
+public class MiniMapCommand extends CommandBase {
+    private final MiniMapMod mod = MiniMapMod.instance();
+
+    @Override
+    public String getCommandName() {
+        return "minimap";
+    }
+
+    @Override
+    public String getCommandUsage(ICommandSender sender) {
+        return "/minimap <resolution|scale|size> <value>, /minimap waypoint <add|remove> <name>, /minimap waypoint list,"
+                + " /minimap record <name|stop>, /minimap export [<chunkX1> <chunkZ1> <chunkX2> <chunkZ2>], or"
+                + " /minimap reload";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 0;
+    }
+
+    @Override
+    public boolean canCommandSenderUseCommand(ICommandSender sender) {
+        return true;
+    }
+
+    @Override
+    public void processCommand(ICommandSender sender, String[] args) throws CommandException {
+        if (args.length == 1 && args[0].equals("reload")) {
+            this.mod.getConfig().load();
+            sender.addChatMessage(new ChatComponentText("Mini-map settings reloaded"));
+            return;
+        }
+
+        if (args.length >= 2 && args[0].equals("waypoint")) {
+            this.processWaypoint(sender, args);
+            return;
+        }
+
+        if (args.length == 2 && args[0].equals("record")) {
+            this.processRecord(sender, args[1]);
+            return;
+        }
+
+        if ((args.length == 1 || args.length == 5) && args[0].equals("export")) {
+            this.processExport(sender, args);
+            return;
+        }
+
+        if (args.length != 2) {
+            throw new WrongUsageException(this.getCommandUsage(sender));
+        }
+
+        MiniMapConfig config = this.mod.getConfig();
+
+        switch (args[0]) {
+            case "resolution":
+                config.setInt("mapResolution", parsePowerOfTwo(args[1], 64, 512));
+                break;
+            case "scale":
+                config.setInt("blocksPerPixel", parsePowerOfTwo(args[1], 1, 16));
+                break;
+            case "size":
+                config.setInt("mapSize", parseInt(args[1], 32, 512));
+                break;
+            default:
+                throw new WrongUsageException(this.getCommandUsage(sender));
+        }
+
+        sender.addChatMessage(new ChatComponentText("Mini-map " + args[0] + " set to " + args[1]));
+    }
+
+    /**
+     * Adds a waypoint at the sender's position, removes one, or lists them. Names may contain spaces.
+     */
+    private void processWaypoint(ICommandSender sender, String[] args) throws CommandException {
+        MapMarkers markers = this.mod.markers;
+        String name = buildString(args, 2);
+
+        switch (args[1]) {
+            case "add":
+                if (name.isEmpty()) {
+                    throw new WrongUsageException(this.getCommandUsage(sender));
+                }
+
+                BlockPos pos = sender.getPosition();
+                markers.addWaypoint(name, pos.getX(), pos.getZ());
+                sender.addChatMessage(new ChatComponentText("Waypoint " + name + " set at " + pos.getX() + ", "
+                        + pos.getZ()));
+                break;
+            case "remove":
+                if (!markers.removeWaypoint(name)) {
+                    throw new CommandException("There is no waypoint called %s", name);
+                }
+
+                sender.addChatMessage(new ChatComponentText("Waypoint " + name + " removed"));
+                break;
+            case "list":
+                sender.addChatMessage(new ChatComponentText("Waypoints: " + String.join(", ",
+                        markers.getWaypointNames())));
+                break;
+            default:
+                throw new WrongUsageException(this.getCommandUsage(sender));
+        }
+    }
+
+    /**
+     * Starts recording what the mini-map scans to a file of the given name, or stops recording. Recordings stop when the
+     * player changes dimension.
+     */
+    private void processRecord(ICommandSender sender, String name) throws CommandException {
+        MapRecorder recorder = this.mod.recorder;
+        this.mod.stopRecording();
+
+        if (name.equals("stop")) {
+            if (recorder == null) {
+                throw new CommandException("Nothing is being recorded");
+            }
+
+            sender.addChatMessage(new ChatComponentText("Recorded " + recorder.getFrames() + " frames to "
+                    + recorder.getFile().getName()));
+            return;
+        }
+
+        if (!name.matches("[A-Za-z0-9._-]+")) {
+            throw new CommandException("%s is not a valid recording name", name);
+        }
+
+        File file = new File(Minecraft.getMinecraft().mcDataDir, "minimap/recordings/" + name + ".mmr");
+
+        try {
+            this.mod.recorder = new MapRecorder(file);
+        } catch (IOException e) {
+            throw new CommandException("Could not create %s: %s", file.getName(), e.getMessage());
+        }
+
+        sender.addChatMessage(new ChatComponentText("Recording the mini-map to " + file.getName()));
+    }
+
+    /**
+     * Exports everything explored in the current dimension, or the given chunk rectangle, as images in the background.
+     */
+    private void processExport(ICommandSender sender, String[] args) throws CommandException {
+        int[] bounds = null;
+
+        if (args.length == 5) {
+            int chunkX1 = parseInt(args[1]);
+            int chunkZ1 = parseInt(args[2]);
+            int chunkX2 = parseInt(args[3]);
+            int chunkZ2 = parseInt(args[4]);
+            bounds = new int[] {Math.min(chunkX1, chunkX2), Math.min(chunkZ1, chunkZ2), Math.max(chunkX1, chunkX2),
+                    Math.max(chunkZ1, chunkZ2)};
+        }
+
+        if (this.mod.exporter.isRunning()) {
+            throw new CommandException("The mini-map is being exported already");
+        }
+
+        /* The summary comes from an export thread, chat belongs to the client thread */
+        File directory = this.mod.exporter.start(this.mod.virtualMap, bounds, summary ->
+                Minecraft.getMinecraft().addScheduledTask(() -> sender.addChatMessage(new ChatComponentText(summary))));
+
+        if (directory == null) {
+            throw new CommandException("Explored areas aren't remembered, see the tileStore setting");
+        }
+
+        sender.addChatMessage(new ChatComponentText("Exporting the mini-map to " + directory));
+    }
+
+    private static int parsePowerOfTwo(String input, int min, int max) throws CommandException {
+        int value = parseInt(input, min, max);
+
+        if (Integer.bitCount(value) != 1) {
+            throw new CommandException("%s is not a power of two", input);
+        }
+
+        return value;
+    }
+
+    @Override
+    public List<String> addTabCompletionOptions(ICommandSender sender, String[] args, BlockPos pos) {
+        if (args.length == 1) {
+            return getListOfStringsMatchingLastWord(args, "resolution", "scale", "size", "waypoint", "record", "export",
+                    "reload");
+        }
+
+        if (args.length == 2 && args[0].equals("record")) {
+            return getListOfStringsMatchingLastWord(args, "stop");
+        }
+
+        if (args[0].equals("waypoint")) {
+            if (args.length == 2) {
+                return getListOfStringsMatchingLastWord(args, "add", "remove", "list");
+            }
+
+            if (args.length == 3 && args[1].equals("remove")) {
+                return getListOfStringsMatchingLastWord(args, this.mod.markers.getWaypointNames());
+            }
+        }
+
+        return null;
+    }
+}
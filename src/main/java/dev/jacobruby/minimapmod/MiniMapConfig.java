@@ -0,0 +1,154 @@
+package dev.jacobruby.minimapmod;
+
+import net.minecraftforge.common.config.Configuration;
+
+import java.io.File;
+
+/**
+ * Mod settings, backed by the forge configuration file.
+ */
+public class MiniMapConfig {
+    private final Configuration configuration;
+
+    /**
+     * Whether the map is scanned on a background thread. Turn this off to debug the scan on the client thread.
+     */
+    public boolean asyncScan;
+
+    /**
+     * Whether the scan writes texture colors directly instead of the renderer converting map color bytes every tick.
+     */
+    public boolean directColors;
+
+    /**
+     * The most chunks whose surface scan results are kept in memory, about a kilobyte each.
+     */
+    public int surfaceCacheChunks;
+
+    /**
+     * The most chunks whose cave scan bitmaps are kept in memory, about 16 kilobytes each.
+     */
+    public int caveCacheChunks;
+
+    /**
+     * The most microseconds a scan may spend scanning columns, or 0 for no limit. Columns it doesn't reach wait for
+     * the next scan.
+     */
+    public int scanBudgetMicros;
+
+    /**
+     * Pixels along each side of the map, a power of two. Scan and upload costs grow with its square.
+     */
+    public int mapResolution;
+
+    /**
+     * Blocks along each side of a map pixel, a power of two. Zoomed out maps are downsampled from the 1:1 map, so this
+     * doesn't change what is scanned.
+     */
+    public int blocksPerPixel;
+
+    /**
+     * On-screen diameter of the mini-map, in scaled pixels.
+     */
+    public int mapSize;
+
+    /**
+     * Whether explored map colors are remembered on disk, per world and dimension, and shown where no chunk is loaded.
+     */
+    public boolean tileStore;
+
+    /**
+     * The most megabytes the mini-maps of dimensions the player left may keep, so they show up right away on return.
+     */
+    public int retainedMapsMegabytes;
+
+    /**
+     * The most tiles the world map keeps as textures, 64 kilobytes of video memory each.
+     */
+    public int worldMapTiles;
+
+    /**
+     * The most world map tiles kept packed off the heap, at most 16 kilobytes each and far less for tiles of few colors.
+     */
+    public int worldMapPackedTiles;
+
+    /**
+     * Frames the mini-map is drawn once for, through an offscreen buffer that is moved and turned in between. 0 draws
+     * it every frame.
+     */
+    public int compositeFrames;
+
+    /**
+     * The most markers of players, mobs, item drops and waypoints drawn on the mini-map, the nearest ones are drawn.
+     */
+    public int markerCap;
+
+    /**
+     * Whether timings and counts of the mini-map's work are shown under it.
+     */
+    public boolean statsOverlay;
+
+    /**
+     * Seconds between lines of the stats log, 0 to log nothing. The stats are only collected while they are shown or
+     * logged.
+     */
+    public int statsLogSeconds;
+
+    public MiniMapConfig(File file) {
+        this.configuration = new Configuration(file);
+    }
+
+    /**
+     * Reads the settings from the file, writing the defaults of any missing ones.
+     */
+    public void load() {
+        this.configuration.load();
+
+        this.asyncScan = this.configuration.getBoolean("asyncScan", Configuration.CATEGORY_GENERAL, true,
+                "Scan the map on a background thread. Disable to scan on the client thread for debugging.");
+        this.directColors = this.configuration.getBoolean("directColors", Configuration.CATEGORY_GENERAL, true,
+                "Have the scan write texture colors directly instead of converting map colors every tick.");
+        this.surfaceCacheChunks = this.configuration.getInt("surfaceCacheChunks", Configuration.CATEGORY_GENERAL, 1024,
+                16, 65536, "The most chunks to keep surface scan results of, about a kilobyte each.");
+        this.caveCacheChunks = this.configuration.getInt("caveCacheChunks", Configuration.CATEGORY_GENERAL, 256,
+                16, 4096, "The most chunks to keep cave scan bitmaps of, about 16 kilobytes each.");
+        this.scanBudgetMicros = this.configuration.getInt("scanBudgetMicros", Configuration.CATEGORY_GENERAL, 500,
+                0, 50000, "The most microseconds to spend scanning per tick, 0 for no limit. Nearby changes go first.");
+        /* Both are rounded down to a power of two */
+        this.mapResolution = Integer.highestOneBit(this.configuration.getInt("mapResolution",
+                Configuration.CATEGORY_GENERAL, 128, 64, 512, "Pixels along each side of the map, a power of two."));
+        this.blocksPerPixel = Integer.highestOneBit(this.configuration.getInt("blocksPerPixel",
+                Configuration.CATEGORY_GENERAL, 1, 1, 16, "Blocks along each side of a map pixel, a power of two."));
+        this.mapSize = this.configuration.getInt("mapSize", Configuration.CATEGORY_GENERAL, 128, 32, 512,
+                "On-screen diameter of the mini-map, in scaled pixels.");
+        this.tileStore = this.configuration.getBoolean("tileStore", Configuration.CATEGORY_GENERAL, true,
+                "Remember explored map colors on disk, and show them where no chunk is loaded.");
+        this.retainedMapsMegabytes = this.configuration.getInt("retainedMapsMegabytes", Configuration.CATEGORY_GENERAL,
+                32, 0, 1024, "The most megabytes to keep the maps of other dimensions in, 0 to rescan on every return.");
+        this.worldMapTiles = this.configuration.getInt("worldMapTiles", Configuration.CATEGORY_GENERAL, 256, 256,
+                4096, "The most tiles the world map keeps as textures, 64 kilobytes of video memory each.");
+        this.worldMapPackedTiles = this.configuration.getInt("worldMapPackedTiles", Configuration.CATEGORY_GENERAL,
+                4096, 256, 65536, "The most world map tiles to keep packed in memory, 16 kilobytes each at most.");
+        this.compositeFrames = this.configuration.getInt("compositeFrames", Configuration.CATEGORY_GENERAL, 0, 0, 10,
+                "Frames to draw the mini-map once for, through an offscreen buffer. 0 draws it every frame.");
+        this.markerCap = this.configuration.getInt("markerCap", Configuration.CATEGORY_GENERAL, 64, 0, 1024,
+                "The most markers of players, mobs, item drops and waypoints to draw, 0 to draw none.");
+        this.statsOverlay = this.configuration.getBoolean("statsOverlay", Configuration.CATEGORY_GENERAL, false,
+                "Show timings and counts of the mini-map's work under it.");
+        this.statsLogSeconds = this.configuration.getInt("statsLogSeconds", Configuration.CATEGORY_GENERAL, 0, 0, 3600,
+                "Seconds between lines of the stats log in minimap/stats.csv, 0 to log nothing.");
+
+        if (this.configuration.hasChanged()) {
+            this.configuration.save();
+        }
+    }
+
+    /**
+     * Changes an integer setting, saves it to the file and reloads every setting.
+     */
+    public void setInt(String name, int value) {
+        this.configuration.get(Configuration.CATEGORY_GENERAL, name, value).set(value);
+        this.configuration.save();
+        this.load();
+    }
+}
@@ -1,19 +1,26 @@
 package dev.jacobruby.minimapmod;
 
+import dev.jacobruby.minimapmod.map.MapStats;
 import dev.jacobruby.minimapmod.map.MiniMapRenderer;
 import dev.jacobruby.minimapmod.map.MiniMapData;
+import dev.jacobruby.minimapmod.map.WorldMapScreen;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.multiplayer.ServerData;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.world.World;
-import net.minecraft.world.storage.MapData;
+import net.minecraft.world.chunk.Chunk;
 import net.minecraftforge.client.event.RenderGameOverlayEvent;
+import net.minecraftforge.event.world.ChunkEvent;
 import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.InputEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent.ClientTickEvent;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
 
+import java.io.File;
+
 /**
  * Event handler class. Contains all event handlers used in this mod.
  */
@@ -22,14 +29,145 @@ public class MiniMapEvents {
 
     private final MiniMapMod mod = MiniMapMod.instance();
 
+    /* The listener of the mini-map's world, null while there is none */
+    private MiniMapWorldListener worldListener;
+
+    private final RetainedMaps retainedMaps = new RetainedMaps();
+
+    private final MapStats stats = new MapStats();
+    private final File statsLog = new File(MC.mcDataDir, "minimap/stats.csv");
+
+    /* The client world the mini-map belongs to, and its key. The next world loads before this one unloads */
+    private World mapWorld;
+    private String mapWorldKey;
+
     /**
-     * When the player joins or enters a new dimension, create a new mini-map.
+     * When the player joins or enters a new dimension, switch to the mini-map of that dimension, a new one unless the
+     * player was there before and its map was retained.
      */
     @SubscribeEvent
     @SideOnly(Side.CLIENT)
     public void worldLoadEvent(WorldEvent.Load event) {
-        MapData mapData = this.mod.virtualMap = new MiniMapData();
-        mapData.scale = 0;
+        /* The integrated server loads its worlds too */
+        if (!event.world.isRemote) {
+            return;
+        }
+
+        /* Recordings are of one dimension */
+        this.mod.stopRecording();
+
+        if (this.mapWorld != null) {
+            this.mod.virtualMap.detach();
+            this.retainedMaps.retain(this.mapWorldKey, this.mod.virtualMap,
+                    this.mod.getConfig().retainedMapsMegabytes * 1024L * 1024L);
+        }
+
+        String key = this.worldKey(event.world);
+        MiniMapData mapData = this.retainedMaps.take(key);
+
+        if (mapData != null) {
+            mapData.attach(event.world);
+        } else {
+            mapData = new MiniMapData();
+            mapData.scale = 0;
+        }
+
+        this.mod.virtualMap = mapData;
+        this.mapWorld = event.world;
+        this.mapWorldKey = key;
+
+        /* Entities of the new world are added as they spawn */
+        this.mod.markers.clearEntities();
+        this.mod.markers.setWaypointFile(new File(MC.mcDataDir, "minimap/" + key + "/waypoints.txt"));
+
+        /* The previous world unloads later, its block updates and entities are not of this map */
+        this.removeWorldListener();
+        this.worldListener = new MiniMapWorldListener(event.world);
+        event.world.addWorldAccess(this.worldListener);
+
+        if (this.mod.getConfig().tileStore) {
+            mapData.setTileDirectory(new File(MC.mcDataDir, "minimap/" + key));
+        }
+    }
+
+    /**
+     * When the player leaves the server, forget the maps of every dimension and the markers.
+     */
+    @SubscribeEvent
+    @SideOnly(Side.CLIENT)
+    public void worldUnloadEvent(WorldEvent.Unload event) {
+        if (event.world.isRemote) {
+            if (event.world == this.mapWorld) {
+                this.removeWorldListener();
+                this.mod.virtualMap.setTileDirectory(null);
+                this.mod.stopRecording();
+                this.mod.markers.clearEntities();
+                this.mod.markers.setWaypointFile(null);
+                this.retainedMaps.clear();
+                this.mapWorld = null;
+            }
+        }
+    }
+
+    private void removeWorldListener() {
+        if (this.worldListener != null) {
+            this.worldListener.getWorld().removeWorldAccess(this.worldListener);
+            this.worldListener = null;
+        }
+    }
+
+    /**
+     * @return the key of the given client world, by save or server address and dimension. Also the directory its
+     *         explored colors are remembered in.
+     */
+    private String worldKey(World world) {
+        String name;
+        ServerData server = MC.getCurrentServerData();
+
+        if (MC.isSingleplayer() && MC.getIntegratedServer() != null) {
+            name = "local-" + MC.getIntegratedServer().getFolderName();
+        } else if (server != null) {
+            name = "server-" + server.serverIP;
+        } else {
+            name = "unknown";
+        }
+
+        /* Server addresses may hold ports and other characters file systems don't like */
+        name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+
+        return name + "/DIM" + world.provider.getDimensionId();
+    }
+
+    /**
+     * Marks the columns of a chunk that was loaded by the client to be scanned.
+     */
+    @SubscribeEvent
+    @SideOnly(Side.CLIENT)
+    public void chunkLoadEvent(ChunkEvent.Load event) {
+        this.markChunkDirty(event);
+    }
+
+    /**
+     * Marks the columns of a chunk that was unloaded by the client to be scanned.
+     */
+    @SubscribeEvent
+    @SideOnly(Side.CLIENT)
+    public void chunkUnloadEvent(ChunkEvent.Unload event) {
+        this.markChunkDirty(event);
+    }
+
+    private void markChunkDirty(ChunkEvent event) {
+        /* The integrated server fires these too, on its own thread, and the previous world unloads its chunks after the
+         * next world loaded */
+        if (event.world != this.mapWorld) {
+            return;
+        }
+
+        Chunk chunk = event.getChunk();
+        int x = chunk.xPosition << 4;
+        int z = chunk.zPosition << 4;
+
+        this.mod.virtualMap.markRangeDirty(x, z, x + 15, z + 15);
     }
 
     /**
@@ -47,10 +185,58 @@ public class MiniMapEvents {
         World worldIn = player.worldObj;
         MiniMapData mapData = this.mod.virtualMap;
 
+        mapData.setAsync(this.mod.getConfig().asyncScan);
+        mapData.setDirectColors(this.mod.getConfig().directColors);
+        mapData.setSurfaceCacheChunks(this.mod.getConfig().surfaceCacheChunks);
+        mapData.setCaveCacheChunks(this.mod.getConfig().caveCacheChunks);
+        mapData.setScanBudget(this.mod.getConfig().scanBudgetMicros);
+        mapData.setResolution(this.mod.getConfig().mapResolution);
+        mapData.setBlocksPerPixel(this.mod.getConfig().blocksPerPixel);
+        mapData.setRecorder(this.mod.recorder);
+
+        this.mod.markers.tick();
+
+        MapStats stats = this.stats();
+        mapData.setStats(stats);
+
+        long start = System.nanoTime();
         mapData.update(worldIn, player);
 
+        if (stats != null) {
+            stats.update.record(System.nanoTime() - start);
+        }
+
         if (this.mod.isRendererPrepared()) {
+            start = System.nanoTime();
             this.mod.getRenderer().postTextureData(mapData);
+
+            if (stats != null) {
+                stats.postTexture.record(System.nanoTime() - start);
+            }
+        }
+
+        if (stats != null) {
+            stats.setLog(this.statsLog, this.mod.getConfig().statsLogSeconds);
+            stats.tick();
+        }
+    }
+
+    /**
+     * @return the stats, or null if they are neither shown nor logged.
+     */
+    private MapStats stats() {
+        return this.mod.getConfig().statsOverlay || this.mod.getConfig().statsLogSeconds > 0 ? this.stats : null;
+    }
+
+    /**
+     * Opens the world map when its key is pressed in game.
+     */
+    @SubscribeEvent
+    @SideOnly(Side.CLIENT)
+    public void keyInputEvent(InputEvent.KeyInputEvent event) {
+        if (this.mod.getWorldMapKey().isPressed() && MC.currentScreen == null && MC.thePlayer != null) {
+            MC.displayGuiScreen(new WorldMapScreen(this.mod.virtualMap, this.mod.getWorldMapKey(),
+                    this.mod.getConfig().worldMapTiles, this.mod.getConfig().worldMapPackedTiles));
         }
     }
 
@@ -67,13 +253,34 @@ public class MiniMapEvents {
 
         EntityPlayer player = MC.thePlayer;
 
+        MapStats stats = this.stats();
+
         double rotation = -player.rotationYaw + 180D;
+        renderer.setSize(this.mod.getConfig().mapSize);
+        renderer.setCompositeFrames(this.mod.getConfig().compositeFrames);
+        renderer.setStats(stats);
+        renderer.setMarkers(this.mod.markers, this.mod.getConfig().markerCap, event.partialTicks);
+
+        long start = System.nanoTime();
         renderer.updateTexture();
 
+        if (stats != null) {
+            stats.updateTexture.record(System.nanoTime() - start);
+        }
+
         double xOffset = this.mod.lerp(player.lastTickPosX, player.posX, event.partialTicks) - renderer.xCenter;
         double zOffset = this.mod.lerp(player.lastTickPosZ, player.posZ, event.partialTicks) - renderer.zCenter;
 
         // Offset V for the render is the player's Z position, not to be confused.
-        renderer.render(xOffset, zOffset, rotation);
+        start = System.nanoTime();
+        renderer.render(event.resolution, xOffset, zOffset, rotation);
+
+        if (stats != null) {
+            stats.render.record(System.nanoTime() - start);
+        }
+
+        if (this.mod.getConfig().statsOverlay) {
+            renderer.renderLines(event.resolution, this.stats.lines());
+        }
     }
 }
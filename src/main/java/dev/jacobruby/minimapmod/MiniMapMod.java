@@ -1,11 +1,19 @@
 package dev.jacobruby.minimapmod;
 
+import dev.jacobruby.minimapmod.map.MapExporter;
 import dev.jacobruby.minimapmod.map.MiniMapData;
+import dev.jacobruby.minimapmod.map.MapMarkers;
+import dev.jacobruby.minimapmod.map.MapRecorder;
 import dev.jacobruby.minimapmod.map.MiniMapRenderer;
+import net.minecraft.client.settings.KeyBinding;
+import net.minecraftforge.client.ClientCommandHandler;
 import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.fml.client.registry.ClientRegistry;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.Mod.EventHandler;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
+import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
+import org.lwjgl.input.Keyboard;
 
 @Mod(modid = MiniMapMod.MOD_ID, version = MiniMapMod.VERSION)
 public class MiniMapMod {
@@ -20,17 +28,55 @@ public class MiniMapMod {
 
     private MiniMapEvents events;
     private MiniMapRenderer renderer;
+    private MiniMapConfig config;
+    private KeyBinding worldMapKey;
 
     MiniMapData virtualMap;
 
+    /* Markers of the client world */
+    final MapMarkers markers = new MapMarkers();
+
+    /* The recording in progress, null when nothing is recorded */
+    MapRecorder recorder;
+
+    final MapExporter exporter = new MapExporter();
+
     public MiniMapMod() {
         INSTANCE = this;
         this.events = new MiniMapEvents();
     }
 
+    @EventHandler
+    public void preInit(FMLPreInitializationEvent event) {
+        this.config = new MiniMapConfig(event.getSuggestedConfigurationFile());
+        this.config.load();
+    }
+
     @EventHandler
     public void init(FMLInitializationEvent event) {
         MinecraftForge.EVENT_BUS.register(this.events);
+        ClientCommandHandler.instance.registerCommand(new MiniMapCommand());
+
+        this.worldMapKey = new KeyBinding("key.minimap.worldMap", Keyboard.KEY_M, "key.categories.minimap");
+        ClientRegistry.registerKeyBinding(this.worldMapKey);
+    }
+
+    public MiniMapConfig getConfig() {
+        return this.config;
+    }
+
+    public KeyBinding getWorldMapKey() {
+        return this.worldMapKey;
+    }
+
+    /**
+     * Finishes the recording in progress, if there is one.
+     */
+    void stopRecording() {
+        if (this.recorder != null) {
+            this.recorder.close();
+            this.recorder = null;
+        }
     }
 
     public boolean isRendererPrepared() {
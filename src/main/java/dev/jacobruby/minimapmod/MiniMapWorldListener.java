@@ -0,0 +1,87 @@
+package dev.jacobruby.minimapmod;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.IWorldAccess;
+import net.minecraft.world.World;
+
+/**
+ * World listener used to find out which mini-map columns were changed by block updates, and which entities to show
+ * markers for. Only the block change and entity callbacks are of interest, everything else is ignored.
+ * <p>
+ * Each listener belongs to one world, and is only added to that world while it's the world of the mini-map.
+ */
+public class MiniMapWorldListener implements IWorldAccess {
+    private final MiniMapMod mod = MiniMapMod.instance();
+
+    private final World world;
+
+    public MiniMapWorldListener(World world) {
+        this.world = world;
+    }
+
+    /**
+     * @return the world this listener belongs to.
+     */
+    public World getWorld() {
+        return this.world;
+    }
+
+    @Override
+    public void markBlockForUpdate(BlockPos pos) {
+        this.mod.virtualMap.markRangeDirty(pos.getX(), pos.getZ(), pos.getX(), pos.getZ());
+    }
+
+    /**
+     * Called by the client world when chunk data or multiple blocks arrive from the server.
+     */
+    @Override
+    public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2) {
+        this.mod.virtualMap.markRangeDirty(x1, z1, x2, z2);
+    }
+
+    @Override
+    public void notifyLightSet(BlockPos pos) {
+    }
+
+    @Override
+    public void playSound(String soundName, double x, double y, double z, float volume, float pitch) {
+    }
+
+    @Override
+    public void playSoundToNearExcept(EntityPlayer except, String soundName, double x, double y, double z, float volume,
+                                      float pitch) {
+    }
+
+    @Override
+    public void spawnParticle(int particleID, boolean ignoreRange, double xCoord, double yCoord, double zCoord,
+                              double xOffset, double yOffset, double zOffset, int... parameters) {
+    }
+
+    @Override
+    public void onEntityAdded(Entity entityIn) {
+        this.mod.markers.entityAdded(entityIn);
+    }
+
+    @Override
+    public void onEntityRemoved(Entity entityIn) {
+        this.mod.markers.entityRemoved(entityIn);
+    }
+
+    @Override
+    public void playRecord(String recordName, BlockPos blockPosIn) {
+    }
+
+    @Override
+    public void broadcastSound(int soundID, BlockPos pos, int data) {
+    }
+
+    @Override
+    public void playAuxSFX(EntityPlayer player, int sfxType, BlockPos blockPosIn, int data) {
+    }
+
+    @Override
+    public void sendBlockBreakProgress(int breakerId, BlockPos pos, int progress) {
+    }
+}
@@ -0,0 +1,52 @@
+package dev.jacobruby.minimapmod;
+
+import dev.jacobruby.minimapmod.map.MiniMapData;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Mini-maps of the dimensions the player left, so that returning to one shows its map right away instead of scanning
+ * it from scratch. Maps are dropped least recently left first once they take up more memory than the budget.
+ */
+class RetainedMaps {
+    /* By world key, least recently retained first */
+    private final LinkedHashMap<String, MiniMapData> maps = new LinkedHashMap<>();
+
+    /**
+     * Removes the map of a world.
+     *
+     * @return the map, or null if none is kept.
+     */
+    MiniMapData take(String key) {
+        return this.maps.remove(key);
+    }
+
+    /**
+     * Keeps the {@link MiniMapData#detach() detached} map of a world, then drops maps until the rest fit into the
+     * budget. The new map is dropped too if it doesn't fit on its own.
+     *
+     * @param budget the most bytes all kept maps may take up.
+     */
+    void retain(String key, MiniMapData map, long budget) {
+        this.maps.put(key, map);
+
+        long total = 0;
+
+        for (MiniMapData retained : this.maps.values()) {
+            total += retained.getMemoryBytes();
+        }
+
+        Iterator<MiniMapData> iterator = this.maps.values().iterator();
+
+        while (total > budget && iterator.hasNext()) {
+            total -= iterator.next().getMemoryBytes();
+            iterator.remove();
+        }
+    }
+
+    void clear() {
+        this.maps.clear();
+    }
+}
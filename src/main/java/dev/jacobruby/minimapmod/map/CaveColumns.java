@@ -0,0 +1,162 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.material.MapColor;
+import net.minecraft.block.state.IBlockState;
+
+import java.util.Arrays;
+
+/**
+ * Air and liquid bitmaps of the 256 columns of a chunk, used by the cave scan. Bit {@code y} of a column is set when
+ * the block at {@code y} has the air map color, or is a liquid. Bitmaps are filled one 16 block section at a time, when
+ * a query first reaches the section, and empty sections are filled without reading any block.
+ * <p>
+ * Blocks outside of the world are air, like in {@link net.minecraft.world.chunk.Chunk}.
+ */
+class CaveColumns {
+    /* Four words of 64 bits per column */
+    private final long[] air = new long[256 * 4];
+    private final long[] liquid = new long[256 * 4];
+
+    /* Bit s is set when section s of the column is filled */
+    private final char[] filled = new char[256];
+
+    /**
+     * Forgets every filled section, so the bitmaps can be reused for another chunk.
+     */
+    void clear() {
+        Arrays.fill(this.air, 0L);
+        Arrays.fill(this.liquid, 0L);
+        Arrays.fill(this.filled, (char) 0);
+    }
+
+    /**
+     * @return whether the block at {@code y} has the air map color.
+     */
+    boolean isAir(MapChunk chunk, int x, int z, int y) {
+        if (y < 0 || y > 255) {
+            return true;
+        }
+
+        int c = z << 4 | x;
+        this.fill(chunk, x, z, c, y >> 4);
+
+        return (this.air[c << 2 | y >> 6] >>> y & 1) != 0;
+    }
+
+    /**
+     * @return whether the block at {@code y} is a liquid.
+     */
+    boolean isLiquid(MapChunk chunk, int x, int z, int y) {
+        if (y < 0 || y > 255) {
+            return false;
+        }
+
+        int c = z << 4 | x;
+        this.fill(chunk, x, z, c, y >> 4);
+
+        return (this.liquid[c << 2 | y >> 6] >>> y & 1) != 0;
+    }
+
+    /**
+     * @return the lowest y in {@code [from, to)} with an air colored block, or -1 if there is none.
+     */
+    int nextAir(MapChunk chunk, int x, int z, int from, int to) {
+        if (from >= to) {
+            return -1;
+        }
+
+        if (from < 0 || from > 255) {
+            return from;
+        }
+
+        int c = z << 4 | x;
+
+        for (int y = from; y < to && y <= 255; y = (y | 15) + 1) {
+            int section = y >> 4;
+            this.fill(chunk, x, z, c, section);
+
+            /* The bits of this section from y upward */
+            long bits = this.air[c << 2 | section >> 2] >>> (y & 63) << (y & 63);
+            bits &= 0xFFFFL << ((section & 3) << 4);
+
+            if (bits != 0) {
+                int found = (section >> 2 << 6) + Long.numberOfTrailingZeros(bits);
+                return found < to ? found : -1;
+            }
+        }
+
+        /* Above the world is air */
+        return to > 256 ? 256 : -1;
+    }
+
+    /**
+     * @return the highest y in {@code [to, from]} with a block that isn't air colored, or -1 if there is none.
+     */
+    int previousSolid(MapChunk chunk, int x, int z, int from, int to) {
+        return this.previousClear(this.air, chunk, x, z, from, Math.max(0, to));
+    }
+
+    /**
+     * @return the highest y in {@code [0, from]} with a block that isn't a liquid, or -1 if there is none.
+     */
+    int previousNonLiquid(MapChunk chunk, int x, int z, int from) {
+        if (from > 255) {
+            return from;
+        }
+
+        return this.previousClear(this.liquid, chunk, x, z, from, 0);
+    }
+
+    private int previousClear(long[] bitmap, MapChunk chunk, int x, int z, int from, int to) {
+        int c = z << 4 | x;
+
+        for (int y = Math.min(from, 255); y >= to; y = (y & ~15) - 1) {
+            int section = y >> 4;
+            this.fill(chunk, x, z, c, section);
+
+            /* The clear bits of this section from y downward */
+            long bits = ~bitmap[c << 2 | section >> 2] << (63 - (y & 63)) >>> (63 - (y & 63));
+            bits &= 0xFFFFL << ((section & 3) << 4);
+
+            if (bits != 0) {
+                int found = (section >> 2 << 6) + 63 - Long.numberOfLeadingZeros(bits);
+                return found >= to ? found : -1;
+            }
+        }
+
+        return -1;
+    }
+
+    private void fill(MapChunk chunk, int x, int z, int c, int section) {
+        if ((this.filled[c] >> section & 1) != 0) {
+            return;
+        }
+
+        this.filled[c] |= 1 << section;
+
+        int word = c << 2 | section >> 2;
+        int shift = (section & 3) << 4;
+
+        if (chunk.isSectionEmpty(section)) {
+            this.air[word] |= 0xFFFFL << shift;
+            return;
+        }
+
+        long airBits = 0, liquidBits = 0;
+
+        for (int i = 0; i < 16; ++i) {
+            IBlockState state = chunk.getBlockState(x, section << 4 | i, z);
+
+            if (state.getBlock().getMapColor(state) == MapColor.airColor) {
+                airBits |= 1L << i;
+            }
+
+            if (state.getBlock().getMaterial().isLiquid()) {
+                liquidBits |= 1L << i;
+            }
+        }
+
+        this.air[word] |= airBits << shift;
+        this.liquid[word] |= liquidBits << shift;
+    }
+}
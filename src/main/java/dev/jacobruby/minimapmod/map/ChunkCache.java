@@ -0,0 +1,252 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.world.ChunkCoordIntPair;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Least recently used cache of per-chunk scan data. Entries must be invalidated when a block in their chunk changes.
+ * <p>
+ * Chunks are looked up by their packed coordinates in an open addressing table, and the data of dropped chunks is
+ * reset and handed to the next new chunk, so a full cache doesn't allocate.
+ *
+ * @param <T> the type of the cached data.
+ */
+class ChunkCache<T> {
+    private static final int NONE = -1;
+
+    private final Supplier<T> factory;
+    private final Consumer<T> recycler;
+
+    private int capacity;
+
+    /* Entries by slot, with the usage order as a linked list from the most recently used head */
+    private long[] keys;
+    private Object[] values;
+    private int[] previous, next;
+    private int head, tail;
+
+    /* Slots that were never used start at 'used', dropped slots are linked through 'next' */
+    private int used;
+    private int free;
+
+    /* Slots holding data, which stays allocated when chunks are dropped */
+    private int allocated;
+
+    /* Linear probing table of slots, indexed by the hash of their key */
+    private int[] table;
+    private int mask;
+
+    /* Consecutive columns are usually in the same chunk, so the last entry skips the table */
+    private long lastKey;
+    private int lastSlot;
+
+    /**
+     * @param factory creates the data of chunks that aren't cached.
+     * @param recycler resets the data of a dropped chunk to how the factory creates it.
+     */
+    ChunkCache(Supplier<T> factory, Consumer<T> recycler) {
+        this.factory = factory;
+        this.recycler = recycler;
+        this.allocate(1024);
+    }
+
+    /**
+     * @return the data of the given chunk, new data if it wasn't cached.
+     */
+    @SuppressWarnings("unchecked")
+    T getChunk(int chunkX, int chunkZ) {
+        long key = ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ);
+
+        if (this.lastSlot != NONE && this.lastKey == key) {
+            return (T) this.values[this.lastSlot];
+        }
+
+        int slot = this.find(key);
+
+        if (slot != NONE) {
+            this.unlink(slot);
+        } else {
+            slot = this.takeSlot();
+            this.keys[slot] = key;
+            this.insert(slot);
+
+            if (this.values[slot] == null) {
+                this.values[slot] = this.factory.get();
+                ++this.allocated;
+            } else {
+                this.recycler.accept((T) this.values[slot]);
+            }
+        }
+
+        this.linkFirst(slot);
+        this.lastKey = key;
+        this.lastSlot = slot;
+
+        return (T) this.values[slot];
+    }
+
+    /**
+     * @return the data of the given chunk, or null if it isn't cached. Doesn't count as a use.
+     */
+    @SuppressWarnings("unchecked")
+    T peek(int chunkX, int chunkZ) {
+        int slot = this.find(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+        return slot != NONE ? (T) this.values[slot] : null;
+    }
+
+    void invalidate(long key) {
+        int slot = this.find(key);
+
+        if (slot != NONE) {
+            this.drop(slot);
+            this.next[slot] = this.free;
+            this.free = slot;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(this.table, NONE);
+        this.head = this.tail = NONE;
+        this.used = 0;
+        this.free = NONE;
+        this.lastSlot = NONE;
+    }
+
+    /**
+     * @return the number of chunk data objects the cache holds on to, cached or waiting to be reused.
+     */
+    int allocated() {
+        return this.allocated;
+    }
+
+    /**
+     * Sets the most chunks kept, the least recently used ones are dropped first. Changing it drops every chunk.
+     */
+    void setCapacity(int capacity) {
+        if (capacity != this.capacity) {
+            this.allocate(capacity);
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.previous = new int[capacity];
+        this.next = new int[capacity];
+        this.allocated = 0;
+
+        /* At most half full, so probe runs stay short */
+        this.table = new int[Integer.highestOneBit(capacity) << 2];
+        this.mask = this.table.length - 1;
+
+        this.clear();
+    }
+
+    private int takeSlot() {
+        int slot;
+
+        if (this.free != NONE) {
+            slot = this.free;
+            this.free = this.next[slot];
+        } else if (this.used < this.capacity) {
+            slot = this.used++;
+        } else {
+            slot = this.tail;
+            this.drop(slot);
+        }
+
+        return slot;
+    }
+
+    /**
+     * Removes a slot from the table and the usage order. Its data stays, to be recycled.
+     */
+    private void drop(int slot) {
+        this.remove(slot);
+        this.unlink(slot);
+
+        if (this.lastSlot == slot) {
+            this.lastSlot = NONE;
+        }
+    }
+
+    private int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & this.mask;
+    }
+
+    private int find(long key) {
+        for (int i = this.hash(key); this.table[i] != NONE; i = i + 1 & this.mask) {
+            if (this.keys[this.table[i]] == key) {
+                return this.table[i];
+            }
+        }
+
+        return NONE;
+    }
+
+    private void insert(int slot) {
+        int i = this.hash(this.keys[slot]);
+
+        while (this.table[i] != NONE) {
+            i = i + 1 & this.mask;
+        }
+
+        this.table[i] = slot;
+    }
+
+    private void remove(int slot) {
+        int i = this.hash(this.keys[slot]);
+
+        while (this.table[i] != slot) {
+            i = i + 1 & this.mask;
+        }
+
+        /* Move later slots of the probe run back into the gap, unless that would put them before their hash */
+        for (int j = i + 1 & this.mask; this.table[j] != NONE; j = j + 1 & this.mask) {
+            int k = this.hash(this.keys[this.table[j]]);
+
+            if (i <= j ? i < k && k <= j : i < k || k <= j) {
+                continue;
+            }
+
+            this.table[i] = this.table[j];
+            i = j;
+        }
+
+        this.table[i] = NONE;
+    }
+
+    private void unlink(int slot) {
+        int previous = this.previous[slot];
+        int next = this.next[slot];
+
+        if (previous == NONE) {
+            this.head = next;
+        } else {
+            this.next[previous] = next;
+        }
+
+        if (next == NONE) {
+            this.tail = previous;
+        } else {
+            this.previous[next] = previous;
+        }
+    }
+
+    private void linkFirst(int slot) {
+        this.previous[slot] = NONE;
+        this.next[slot] = this.head;
+
+        if (this.head == NONE) {
+            this.tail = slot;
+        } else {
+            this.previous[this.head] = slot;
+        }
+
+        this.head = slot;
+    }
+}
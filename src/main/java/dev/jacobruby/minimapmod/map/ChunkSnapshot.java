@@ -0,0 +1,180 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A copy of the block data of a chunk. Snapshots are taken on the client thread and may then be read from any thread,
+ * block states are resolved through {@link Block#BLOCK_STATE_IDS} which isn't modified after start-up. A snapshot may
+ * be refilled with {@link #copy(Chunk, int, int)} once no scan reads it anymore, which reuses its arrays.
+ */
+public class ChunkSnapshot implements MapChunk {
+    public static final ChunkSnapshot EMPTY = new ChunkSnapshot();
+
+    public int xPosition, zPosition;
+
+    /* Block state ids per 16 block high section, only sections with their bit set in 'present' hold blocks */
+    private final char[][] sections = new char[16][];
+    private int present;
+    private final int[] heightMap = new int[256];
+    private boolean empty = true;
+
+    /**
+     * Copies the block data of a chunk. Must be called on the thread that owns the world.
+     */
+    public static ChunkSnapshot of(World world, int chunkX, int chunkZ) {
+        return new ChunkSnapshot().copy(world.getChunkFromChunkCoords(chunkX, chunkZ), chunkX, chunkZ);
+    }
+
+    /**
+     * Replaces the contents of this snapshot with the block data of a chunk. Must be called on the thread that owns the
+     * chunk, while no scan reads this snapshot.
+     *
+     * @param chunk the chunk at the given coordinates, as served by the world.
+     * @return this snapshot.
+     */
+    public ChunkSnapshot copy(Chunk chunk, int chunkX, int chunkZ) {
+        /* Missing chunks are served as one shared empty chunk, so use the requested coordinates */
+        this.xPosition = chunkX;
+        this.zPosition = chunkZ;
+        this.empty = chunk.isEmpty();
+        this.present = 0;
+
+        if (this.empty) {
+            return this;
+        }
+
+        ExtendedBlockStorage[] storageArray = chunk.getBlockStorageArray();
+
+        for (int i = 0; i < storageArray.length; ++i) {
+            ExtendedBlockStorage storage = storageArray[i];
+
+            if (storage != null && !storage.isEmpty()) {
+                char[] data = storage.getData();
+
+                if (this.sections[i] == null) {
+                    this.sections[i] = new char[data.length];
+                }
+
+                System.arraycopy(data, 0, this.sections[i], 0, data.length);
+                this.present |= 1 << i;
+            }
+        }
+
+        System.arraycopy(chunk.getHeightMap(), 0, this.heightMap, 0, this.heightMap.length);
+
+        return this;
+    }
+
+    /**
+     * Writes the block data for a {@link MapRecorder} recording, with the block state ids of this game.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeBoolean(this.empty);
+
+        if (this.empty) {
+            return;
+        }
+
+        out.writeShort(this.present);
+        ByteBuffer buffer = ByteBuffer.allocate(4096 * 2);
+
+        for (int i = 0; i < this.sections.length; ++i) {
+            if ((this.present >> i & 1) != 0) {
+                buffer.clear();
+                buffer.asCharBuffer().put(this.sections[i]);
+                out.write(buffer.array());
+            }
+        }
+
+        for (int height : this.heightMap) {
+            out.writeShort(height);
+        }
+    }
+
+    /**
+     * Replaces the contents of this snapshot with block data written by {@link #write(DataOutputStream)}.
+     *
+     * @param stateIds the block state id of this game for every id of the recording.
+     * @return this snapshot.
+     */
+    ChunkSnapshot read(DataInputStream in, int chunkX, int chunkZ, char[] stateIds) throws IOException {
+        this.xPosition = chunkX;
+        this.zPosition = chunkZ;
+        this.empty = in.readBoolean();
+        this.present = 0;
+
+        if (this.empty) {
+            return this;
+        }
+
+        this.present = in.readUnsignedShort();
+        byte[] bytes = new byte[4096 * 2];
+
+        for (int i = 0; i < this.sections.length; ++i) {
+            if ((this.present >> i & 1) != 0) {
+                if (this.sections[i] == null) {
+                    this.sections[i] = new char[4096];
+                }
+
+                in.readFully(bytes);
+                char[] section = this.sections[i];
+                ByteBuffer.wrap(bytes).asCharBuffer().get(section);
+
+                for (int n = 0; n < section.length; ++n) {
+                    section[n] = stateIds[section[n]];
+                }
+            }
+        }
+
+        for (int n = 0; n < this.heightMap.length; ++n) {
+            this.heightMap[n] = in.readShort();
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the block state ids of a section, null if it holds no blocks. Must not be modified.
+     */
+    char[] getSection(int section) {
+        return (this.present >> section & 1) != 0 ? this.sections[section] : null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.empty;
+    }
+
+    @Override
+    public int getHeightValue(int x, int z) {
+        return this.heightMap[z << 4 | x];
+    }
+
+    @Override
+    public boolean isSectionEmpty(int section) {
+        return (this.present >> section & 1) == 0;
+    }
+
+    @Override
+    public IBlockState getBlockState(int x, int y, int z) {
+        if (y >= 0 && y >> 4 < this.sections.length && (this.present >> (y >> 4) & 1) != 0) {
+            IBlockState state = Block.BLOCK_STATE_IDS.getByValue(this.sections[y >> 4][(y & 15) << 8 | z << 4 | x]);
+
+            if (state != null) {
+                return state;
+            }
+        }
+
+        return Blocks.air.getDefaultState();
+    }
+}
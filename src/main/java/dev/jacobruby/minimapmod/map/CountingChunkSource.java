@@ -0,0 +1,70 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+
+/**
+ * Counts the blocks the scan reads from another source into {@link MapStats}. Only used while stats are collected, so
+ * the scan pays nothing for them otherwise.
+ */
+class CountingChunkSource implements MapChunkSource {
+    private final MapStats stats;
+    private MapChunkSource source;
+
+    /* Reused for sources that aren't read concurrently, their chunks are only valid until the next call anyway */
+    private final CountingChunk chunk = new CountingChunk();
+    /* Reused by each thread reading a concurrent source, a thread reads one chunk at a time */
+    private final ThreadLocal<CountingChunk> threadChunk = ThreadLocal.withInitial(() -> new CountingChunk());
+
+    CountingChunkSource(MapStats stats) {
+        this.stats = stats;
+    }
+
+    CountingChunkSource setSource(MapChunkSource source) {
+        this.source = source;
+        return this;
+    }
+
+    @Override
+    public MapChunk getChunk(int chunkX, int chunkZ) {
+        CountingChunk chunk = this.source.isConcurrent() ? this.threadChunk.get() : this.chunk;
+        chunk.chunk = this.source.getChunk(chunkX, chunkZ);
+        return chunk;
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return this.source.isConcurrent();
+    }
+
+    private class CountingChunk implements MapChunk {
+        private MapChunk chunk;
+
+        @Override
+        public boolean isEmpty() {
+            return this.chunk.isEmpty();
+        }
+
+        @Override
+        public int getHeightValue(int x, int z) {
+            return this.chunk.getHeightValue(x, z);
+        }
+
+        @Override
+        public boolean isSectionEmpty(int section) {
+            return this.chunk.isSectionEmpty(section);
+        }
+
+        @Override
+        public IBlockState getBlockState(int x, int y, int z) {
+            CountingChunkSource.this.stats.probes.increment();
+            return this.chunk.getBlockState(x, y, z);
+        }
+
+        @Override
+        public Block getBlock(int x, int y, int z) {
+            CountingChunkSource.this.stats.probes.increment();
+            return this.chunk.getBlock(x, y, z);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+
+/**
+ * Read-only view of the chunk data used by the map scan. Coordinates are relative to the chunk.
+ */
+public interface MapChunk {
+    /**
+     * @return whether the chunk has no data, meaning it isn't loaded.
+     */
+    boolean isEmpty();
+
+    /**
+     * @return the y level above the highest light-blocking block in the column.
+     */
+    int getHeightValue(int x, int z);
+
+    /**
+     * @return whether the 16 block high section holds nothing but air.
+     */
+    boolean isSectionEmpty(int section);
+
+    /**
+     * @return the block state at the given position, air when {@code y} is outside of the world.
+     */
+    IBlockState getBlockState(int x, int y, int z);
+
+    default Block getBlock(int x, int y, int z) {
+        return this.getBlockState(x, y, z).getBlock();
+    }
+}
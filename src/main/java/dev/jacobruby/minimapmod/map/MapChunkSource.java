@@ -0,0 +1,20 @@
+package dev.jacobruby.minimapmod.map;
+
+/**
+ * Provides chunks to the map scan by chunk coordinates.
+ */
+public interface MapChunkSource {
+    /**
+     * The returned chunk is only valid until the next call, sources are free to reuse it.
+     *
+     * @return the chunk at the given chunk coordinates, an empty chunk if it isn't available.
+     */
+    MapChunk getChunk(int chunkX, int chunkZ);
+
+    /**
+     * @return whether chunks may be requested and read by several threads at once.
+     */
+    default boolean isConcurrent() {
+        return false;
+    }
+}
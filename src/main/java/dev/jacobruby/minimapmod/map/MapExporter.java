@@ -0,0 +1,294 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.world.ChunkCoordIntPair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Exports the explored area of a {@link TileStore} as PNG images, one per region of 512x512 blocks, a pixel per block
+ * with north up, named by region coordinates. Pixels have the colors the mini-map scan shaded, unexplored ones are
+ * transparent.
+ * <p>
+ * Regions are read from their files and drawn in parallel on low priority background threads, each holding one region
+ * at a time, so an export never stalls the game and its memory doesn't grow with the explored area. The checksum of
+ * every written image is kept in an index, and regions whose samples didn't change since are skipped, so exporting
+ * again only writes what changed, and an interrupted export picks up where it stopped.
+ */
+public class MapExporter {
+    private static final Logger LOGGER = LogManager.getLogger("Mini-Map");
+
+    private static final int SIZE = TileStore.REGION_SIZE;
+
+    /* Leaves a core to the game */
+    private static final ExecutorService EXPORTERS = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1), runnable -> {
+                Thread thread = new Thread(runnable, "Mini-Map Exporter");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+
+    /* Whether an export is running, only one runs at a time */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Starts exporting in the background, unless an export is running already.
+     *
+     * @param mapData the map of the dimension to export.
+     * @param bounds the chunk rectangle to export as lowest x, lowest z, highest x and highest z, inclusive, or null to
+     *               export everything explored. Regions are clipped to it, and written to a directory of their own.
+     * @param done receives a summary once the export finished, on a background thread.
+     * @return the directory the images are written to, or null if nothing is exported since explored areas aren't
+     *         remembered or an export is running.
+     */
+    public File start(MiniMapData mapData, int[] bounds, Consumer<String> done) {
+        TileStore store = mapData.getTileStore();
+
+        if (store == null || !this.running.compareAndSet(0, 1)) {
+            return null;
+        }
+
+        /* Images of a rectangle are clipped to it, so they and their checksums are kept apart from full exports */
+        File directory = new File(store.getDirectory(), bounds == null ? "export"
+                : "export-" + bounds[0] + "." + bounds[1] + "." + bounds[2] + "." + bounds[3]);
+        EXPORTERS.execute(() -> {
+            try {
+                new Export(store, directory, bounds, done).plan();
+            } catch (Throwable t) {
+                LOGGER.warn("Could not export the mini-map to " + directory, t);
+                this.running.set(0);
+                done.accept("Could not export the mini-map: " + t);
+            }
+        });
+
+        return directory;
+    }
+
+    /**
+     * @return whether an export is running.
+     */
+    public boolean isRunning() {
+        return this.running.get() != 0;
+    }
+
+    /**
+     * One run of the exporter.
+     */
+    private class Export {
+        private final TileStore store;
+        private final File directory;
+        private final int[] bounds;
+        private final Consumer<String> done;
+
+        /* Checksums of the images written by earlier exports, by region key, and the log of images written since */
+        private final Map<Long, Long> checksums = new HashMap<>();
+        private final File indexFile;
+        private Writer index;
+
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final AtomicInteger written = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private long start;
+
+        private Export(TileStore store, File directory, int[] bounds, Consumer<String> done) {
+            this.store = store;
+            this.directory = directory;
+            this.bounds = bounds;
+            this.done = done;
+            this.indexFile = new File(directory, "index.txt");
+        }
+
+        /**
+         * Reads the index and queues every region to export.
+         */
+        private void plan() throws IOException {
+            this.start = System.nanoTime();
+
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IOException("Could not create " + this.directory);
+            }
+
+            this.readIndex();
+            this.index = new FileWriter(this.indexFile, true);
+
+            List<ChunkCoordIntPair> regions = this.store.listRegions();
+
+            if (this.bounds != null) {
+                /* Regions are 32 chunks wide */
+                regions.removeIf(region -> region.chunkXPos < this.bounds[0] >> 5
+                        || region.chunkXPos > this.bounds[2] >> 5 || region.chunkZPos < this.bounds[1] >> 5
+                        || region.chunkZPos > this.bounds[3] >> 5);
+            }
+
+            /* One more than the regions, so the last region can't finish the export before every region is queued */
+            this.remaining.set(regions.size() + 1);
+
+            for (ChunkCoordIntPair region : regions) {
+                EXPORTERS.execute(() -> {
+                    try {
+                        this.export(region.chunkXPos, region.chunkZPos);
+                    } catch (Throwable t) {
+                        LOGGER.warn("Could not export mini-map region " + region, t);
+                        this.failed.incrementAndGet();
+                    } finally {
+                        this.finishOne();
+                    }
+                });
+            }
+
+            this.finishOne();
+        }
+
+        /**
+         * Index lines hold the region coordinates and the checksum of the image, later lines replace earlier ones.
+         */
+        private void readIndex() throws IOException {
+            if (!this.indexFile.isFile()) {
+                return;
+            }
+
+            try (BufferedReader reader = new BufferedReader(new FileReader(this.indexFile))) {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ");
+
+                    if (parts.length == 3) {
+                        try {
+                            this.checksums.put(ChunkCoordIntPair.chunkXZ2Int(Integer.parseInt(parts[0]),
+                                    Integer.parseInt(parts[1])), Long.parseLong(parts[2]));
+                        } catch (NumberFormatException ignored) {
+                            /* A line cut short by a crash */
+                        }
+                    }
+                }
+            }
+        }
+
+        private void export(int regionX, int regionZ) throws IOException {
+            byte[] samples = new byte[SIZE * SIZE];
+
+            if (!this.store.readRegion(regionX, regionZ, samples)) {
+                return;
+            }
+
+            boolean explored = false;
+
+            for (int z = 0; z < SIZE; ++z) {
+                for (int x = 0; x < SIZE; ++x) {
+                    int i = x + z * SIZE;
+
+                    if (!this.inBounds(regionX * SIZE + x, regionZ * SIZE + z)) {
+                        samples[i] = 0;
+                    }
+
+                    explored |= (samples[i] & 255) >= 4;
+                }
+            }
+
+            File file = new File(this.directory, regionX + "." + regionZ + ".png");
+
+            if (!explored) {
+                this.skipped.incrementAndGet();
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(samples);
+            long checksum = crc.getValue();
+            long key = ChunkCoordIntPair.chunkXZ2Int(regionX, regionZ);
+            Long previous = this.checksums.get(key);
+
+            if (previous != null && previous == checksum && file.isFile()) {
+                this.skipped.incrementAndGet();
+                return;
+            }
+
+            BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+            int[] row = new int[SIZE];
+
+            for (int z = 0; z < SIZE; ++z) {
+                for (int x = 0; x < SIZE; ++x) {
+                    byte color = samples[x + z * SIZE];
+                    row[x] = (color & 255) < 4 ? 0 : MapPalette.argb(color, x, z);
+                }
+
+                image.setRGB(0, z, SIZE, 1, row, 0, SIZE);
+            }
+
+            /* Written next to the image first, so an interrupted export never leaves half an image */
+            File temporary = new File(this.directory, file.getName() + ".tmp");
+
+            if (!ImageIO.write(image, "png", temporary)) {
+                throw new IOException("No PNG writer");
+            }
+
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            synchronized (this) {
+                this.checksums.put(key, checksum);
+                this.index.write(regionX + " " + regionZ + " " + checksum + "\n");
+                this.index.flush();
+            }
+
+            this.written.incrementAndGet();
+        }
+
+        private boolean inBounds(int x, int z) {
+            return this.bounds == null || x >> 4 >= this.bounds[0] && z >> 4 >= this.bounds[1]
+                    && x >> 4 <= this.bounds[2] && z >> 4 <= this.bounds[3];
+        }
+
+        private void finishOne() {
+            if (this.remaining.decrementAndGet() != 0) {
+                return;
+            }
+
+            /* Rewrite the index with one line per image */
+            try {
+                this.index.close();
+
+                try (Writer writer = new FileWriter(this.indexFile)) {
+                    for (Map.Entry<Long, Long> entry : this.checksums.entrySet()) {
+                        long key = entry.getKey();
+                        writer.write((int) key + " " + (int) (key >> 32) + " " + entry.getValue() + "\n");
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Could not write the mini-map export index " + this.indexFile, e);
+            }
+
+            MapExporter.this.running.set(0);
+
+            long millis = (System.nanoTime() - this.start) / 1_000_000L;
+            String summary = "Exported the mini-map in " + millis + " ms: " + this.written + " images written, "
+                    + this.skipped + " unchanged or empty";
+
+            if (this.failed.get() > 0) {
+                summary += ", " + this.failed + " failed, see the log";
+            }
+
+            this.done.accept(summary);
+        }
+    }
+}
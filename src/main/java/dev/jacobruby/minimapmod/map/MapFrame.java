@@ -0,0 +1,156 @@
+package dev.jacobruby.minimapmod.map;
+
+/**
+ * A square ARGB image of the map, addressed by sample coordinates wrapped around its edges like the mini-map texture.
+ * The span of changed pixels is kept per row, so a consumer only has to copy or upload what changed. Frames only
+ * exchange pixels with frames of the same size.
+ */
+public class MapFrame {
+    /* Width and height, a power of two */
+    public final int size;
+
+    final int[] pixels;
+
+    /* Changed span of every row, dirtyMaxX < dirtyMinX for clean rows */
+    final int[] dirtyMinX;
+    final int[] dirtyMaxX;
+    boolean dirty;
+
+    /**
+     * Creates a frame showing nothing but the unexplored pattern, with every pixel dirty.
+     */
+    public MapFrame(int size) {
+        this.size = size;
+        this.pixels = new int[size * size];
+        this.dirtyMinX = new int[size];
+        this.dirtyMaxX = new int[size];
+
+        for (int i = 0; i < this.pixels.length; ++i) {
+            this.pixels[i] = MapPalette.argb((byte) 0, i & size - 1, i / size);
+        }
+
+        this.clearDirty();
+        this.markAllDirty();
+    }
+
+    /**
+     * Sets a pixel, marking it dirty if its color changed.
+     */
+    public void set(int x, int y, int color) {
+        int i = x + y * this.size;
+
+        if (this.pixels[i] != color) {
+            this.pixels[i] = color;
+            this.markDirty(y, x, x);
+        }
+    }
+
+    public int get(int x, int y) {
+        return this.pixels[x + y * this.size];
+    }
+
+    public boolean isDirty() {
+        return this.dirty;
+    }
+
+    public void markAllDirty() {
+        for (int y = 0; y < this.size; ++y) {
+            this.markDirty(y, 0, this.size - 1);
+        }
+    }
+
+    /**
+     * Sets every pixel from map color bytes, looked up in the {@link MapPalette}.
+     *
+     * @param colors the colors in the order of {@link net.minecraft.world.storage.MapData#colors}.
+     * @param x0 the sample coordinate of the map's left column.
+     * @param z0 the sample coordinate of the map's top row.
+     */
+    public void setColors(byte[] colors, int x0, int z0) {
+        int mask = this.size - 1;
+
+        for (int l1 = 0; l1 < this.size; ++l1) {
+            int y = z0 + l1 & mask;
+
+            for (int k1 = 0; k1 < this.size; ++k1) {
+                int x = x0 + k1 & mask;
+
+                this.set(x, y, MapPalette.argb(colors[k1 + l1 * this.size], x, y));
+            }
+        }
+    }
+
+    /**
+     * Copies the dirty pixels of {@code from} into this frame and marks them dirty here. {@code from} is clean afterwards.
+     */
+    public void copyDirty(MapFrame from) {
+        if (!from.dirty) {
+            return;
+        }
+
+        for (int y = 0; y < this.size; ++y) {
+            int minX = from.dirtyMinX[y];
+            int maxX = from.dirtyMaxX[y];
+
+            if (maxX >= minX) {
+                System.arraycopy(from.pixels, y * this.size + minX, this.pixels, y * this.size + minX, maxX - minX + 1);
+                this.markDirty(y, minX, maxX);
+            }
+        }
+
+        from.clearDirty();
+    }
+
+    /**
+     * Copies every pixel of {@code from} into this frame, replacing this frame's dirty spans with the ones of
+     * {@code from}. {@code from} is clean afterwards.
+     */
+    public void copyAll(MapFrame from) {
+        System.arraycopy(from.pixels, 0, this.pixels, 0, this.pixels.length);
+        System.arraycopy(from.dirtyMinX, 0, this.dirtyMinX, 0, this.size);
+        System.arraycopy(from.dirtyMaxX, 0, this.dirtyMaxX, 0, this.size);
+        this.dirty = from.dirty;
+
+        from.clearDirty();
+    }
+
+    /**
+     * Adds the dirty spans of {@code other} to the ones of this frame without copying pixels.
+     */
+    public void mergeDirty(MapFrame other) {
+        if (!other.dirty) {
+            return;
+        }
+
+        for (int y = 0; y < this.size; ++y) {
+            if (other.dirtyMaxX[y] >= other.dirtyMinX[y]) {
+                this.markDirty(y, other.dirtyMinX[y], other.dirtyMaxX[y]);
+            }
+        }
+    }
+
+    void markDirty(int y, int minX, int maxX) {
+        if (this.dirtyMaxX[y] < this.dirtyMinX[y]) {
+            this.dirtyMinX[y] = minX;
+            this.dirtyMaxX[y] = maxX;
+        } else {
+            this.dirtyMinX[y] = Math.min(this.dirtyMinX[y], minX);
+            this.dirtyMaxX[y] = Math.max(this.dirtyMaxX[y], maxX);
+        }
+
+        this.dirty = true;
+    }
+
+    void clearDirty(int y) {
+        this.dirtyMinX[y] = this.size;
+        this.dirtyMaxX[y] = -1;
+    }
+
+    public void clearDirty() {
+        for (int y = 0; y < this.size; ++y) {
+            this.clearDirty(y);
+        }
+
+        this.dirty = false;
+    }
+}
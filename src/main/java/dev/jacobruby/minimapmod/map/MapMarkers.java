@@ -0,0 +1,381 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.client.entity.EntityPlayerSP;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityLiving;
+import net.minecraft.entity.item.EntityItem;
+import net.minecraft.entity.monster.IMob;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.MathHelper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Markers of nearby players, mobs and item drops, and the waypoints of the current world. Markers are kept in a grid
+ * of chunk sized cells, addressed by chunk coordinates wrapped around its edges, so the mini-map only looks at the
+ * cells under it. Markers of far away chunks that wrap into the same cell are told apart by their distance.
+ * <p>
+ * Entities are added and removed as the client world reports them, and moved between cells every {@link #tick()}.
+ * Waypoints are saved to a file per world and dimension. Must only be used on the client thread.
+ */
+public class MapMarkers {
+    private static final Logger LOGGER = LogManager.getLogger("Mini-Map");
+
+    /* Icons of the marker atlas, from left to right */
+    public static final int PLAYER = 0;
+    public static final int HOSTILE = 1;
+    public static final int PASSIVE = 2;
+    public static final int ITEM = 3;
+    public static final int WAYPOINT = 4;
+    static final int KINDS = 5;
+
+    /* Cells along each side of the grid, a power of two. Wider than the distance the client loads entities at */
+    private static final int GRID = 64;
+    private static final int GRID_MASK = GRID - 1;
+
+    /* Blocks an entity may have moved from the cell it was filed under at the last tick */
+    private static final double MARGIN = 2D;
+
+    /* Markers per cell, by wrapped chunk coordinates. Lists are created when first needed */
+    @SuppressWarnings("unchecked")
+    private final List<Marker>[] cells = new List[GRID * GRID];
+
+    private final Map<Entity, Marker> entityMarkers = new IdentityHashMap<>();
+    /* The same markers, for ticks to walk by index without an iterator */
+    private final List<Marker> entityList = new ArrayList<>();
+    private final List<Marker> waypoints = new ArrayList<>();
+
+    /* Where the waypoints of the current world are saved, null to not save them */
+    private File waypointFile;
+
+    /**
+     * @return the icon of an entity, or -1 if it has no marker.
+     */
+    private static int kindOf(Entity entity) {
+        if (entity instanceof EntityPlayerSP) {
+            /* The viewer is the icon in the middle */
+            return -1;
+        } else if (entity instanceof EntityPlayer) {
+            return PLAYER;
+        } else if (entity instanceof IMob) {
+            return HOSTILE;
+        } else if (entity instanceof EntityLiving) {
+            return PASSIVE;
+        } else if (entity instanceof EntityItem) {
+            return ITEM;
+        }
+
+        return -1;
+    }
+
+    private static int cellIndex(int chunkX, int chunkZ) {
+        return (chunkX & GRID_MASK) + (chunkZ & GRID_MASK) * GRID;
+    }
+
+    /**
+     * Adds a marker for an entity that joined the world, if it's of a kind that is shown.
+     */
+    public void entityAdded(Entity entity) {
+        int kind = kindOf(entity);
+
+        if (kind < 0 || this.entityMarkers.containsKey(entity)) {
+            return;
+        }
+
+        Marker marker = new Marker(kind, entity, null, entity.posX, entity.posZ);
+        marker.index = this.entityList.size();
+        this.entityMarkers.put(entity, marker);
+        this.entityList.add(marker);
+        this.file(marker);
+    }
+
+    /**
+     * Removes the marker of an entity that left the world.
+     */
+    public void entityRemoved(Entity entity) {
+        Marker marker = this.entityMarkers.remove(entity);
+
+        if (marker != null) {
+            this.unlist(marker);
+            this.unfile(marker);
+        }
+    }
+
+    /**
+     * Removes an entity marker from the list, moving the last one into its place.
+     */
+    private void unlist(Marker marker) {
+        Marker last = this.entityList.remove(this.entityList.size() - 1);
+
+        if (last != marker) {
+            last.index = marker.index;
+            this.entityList.set(marker.index, last);
+        }
+    }
+
+    /**
+     * Moves the markers of entities that moved into another cell, and drops the ones of dead entities.
+     */
+    public void tick() {
+        /* Backwards, so the marker moved into the place of a removed one was already looked at */
+        for (int n = this.entityList.size() - 1; n >= 0; --n) {
+            Marker marker = this.entityList.get(n);
+            Entity entity = marker.entity;
+
+            if (entity.isDead) {
+                this.entityMarkers.remove(entity);
+                this.unlist(marker);
+                this.unfile(marker);
+                continue;
+            }
+
+            int cell = cellIndex(MathHelper.floor_double(entity.posX) >> 4, MathHelper.floor_double(entity.posZ) >> 4);
+
+            if (cell != marker.cell) {
+                this.unfile(marker);
+                marker.x = entity.posX;
+                marker.z = entity.posZ;
+                this.file(marker);
+            }
+        }
+    }
+
+    /**
+     * Forgets the markers of every entity, when the world they are in is left.
+     */
+    public void clearEntities() {
+        for (int n = 0; n < this.entityList.size(); ++n) {
+            this.unfile(this.entityList.get(n));
+        }
+
+        this.entityMarkers.clear();
+        this.entityList.clear();
+    }
+
+    private void file(Marker marker) {
+        marker.cell = cellIndex(MathHelper.floor_double(marker.x) >> 4, MathHelper.floor_double(marker.z) >> 4);
+
+        if (this.cells[marker.cell] == null) {
+            this.cells[marker.cell] = new ArrayList<>();
+        }
+
+        this.cells[marker.cell].add(marker);
+    }
+
+    private void unfile(Marker marker) {
+        this.cells[marker.cell].remove(marker);
+    }
+
+    /**
+     * Finds the markers within a circle, nearest cells first, until {@code cap} are found.
+     *
+     * @param x the x coordinate of the circle's center.
+     * @param z the z coordinate of the circle's center.
+     * @param radius the radius of the circle, in blocks.
+     * @param partialTicks the progress into the current tick, entities are placed between their last two positions.
+     * @param offsets receives the x and z offset of each marker from the center, two values per marker.
+     * @param kinds receives the icon of each marker.
+     * @return the number of markers found.
+     */
+    public int query(double x, double z, double radius, float partialTicks, int cap, double[] offsets, int[] kinds) {
+        int centerX = MathHelper.floor_double(x) >> 4;
+        int centerZ = MathHelper.floor_double(z) >> 4;
+        /* Rings of cells around the center cell that reach past the circle, up to the ring halfway around the grid,
+         * which reaches every cell of a circle wider than the grid */
+        int rings = (int) Math.min(Math.ceil((radius + MARGIN) / 16D) + 1, GRID / 2);
+        double radiusSquared = radius * radius;
+        int count = 0;
+
+        for (int ring = 0; ring <= rings && count < cap; ++ring) {
+            /* The far row and column of the ring halfway around wrap onto its near ones, each cell is looked at once */
+            int last = ring == GRID / 2 ? ring - 1 : ring;
+
+            for (int dz = -ring; dz <= last && count < cap; ++dz) {
+                /* Inner rows only have a cell at each end */
+                int step = dz == -ring || dz == ring ? 1 : Math.max(2 * ring, 1);
+
+                for (int dx = -ring; dx <= last && count < cap; dx += step) {
+                    List<Marker> cell = this.cells[cellIndex(centerX + dx, centerZ + dz)];
+
+                    if (cell == null) {
+                        continue;
+                    }
+
+                    for (int n = 0; n < cell.size() && count < cap; ++n) {
+                        Marker marker = cell.get(n);
+                        double markerX = marker.x;
+                        double markerZ = marker.z;
+
+                        if (marker.entity != null) {
+                            Entity entity = marker.entity;
+                            markerX = entity.lastTickPosX + (entity.posX - entity.lastTickPosX) * partialTicks;
+                            markerZ = entity.lastTickPosZ + (entity.posZ - entity.lastTickPosZ) * partialTicks;
+                        }
+
+                        double offsetX = markerX - x;
+                        double offsetZ = markerZ - z;
+
+                        if (offsetX * offsetX + offsetZ * offsetZ > radiusSquared) {
+                            continue;
+                        }
+
+                        offsets[count * 2] = offsetX;
+                        offsets[count * 2 + 1] = offsetZ;
+                        kinds[count] = marker.kind;
+                        ++count;
+                    }
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Switches to the waypoints of another world, loading them from its file.
+     *
+     * @param file the waypoint file of the world and dimension, or null to have none.
+     */
+    public void setWaypointFile(File file) {
+        for (Marker marker : this.waypoints) {
+            this.unfile(marker);
+        }
+
+        this.waypoints.clear();
+        this.waypointFile = file;
+
+        if (file == null || !file.isFile()) {
+            return;
+        }
+
+        /* One waypoint per line, its x and z coordinate followed by its name */
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+
+                if (parts.length == 3) {
+                    this.add(parts[2], Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.warn("Could not read mini-map waypoints " + file, e);
+        }
+    }
+
+    /**
+     * Adds a waypoint at the given block, replacing the one of the same name, and saves the waypoints.
+     */
+    public void addWaypoint(String name, int x, int z) {
+        this.remove(name);
+        this.add(name, x, z);
+        this.saveWaypoints();
+    }
+
+    /**
+     * Removes the waypoint of the given name and saves the waypoints.
+     *
+     * @return whether there was one.
+     */
+    public boolean removeWaypoint(String name) {
+        boolean removed = this.remove(name);
+
+        if (removed) {
+            this.saveWaypoints();
+        }
+
+        return removed;
+    }
+
+    /**
+     * @return the names of the waypoints, in the order they were added.
+     */
+    public List<String> getWaypointNames() {
+        List<String> names = new ArrayList<>();
+
+        for (Marker marker : this.waypoints) {
+            names.add(marker.name);
+        }
+
+        return names;
+    }
+
+    private void add(String name, int x, int z) {
+        /* At the center of the block */
+        Marker marker = new Marker(WAYPOINT, null, name, x + 0.5D, z + 0.5D);
+        this.waypoints.add(marker);
+        this.file(marker);
+    }
+
+    private boolean remove(String name) {
+        for (Iterator<Marker> iterator = this.waypoints.iterator(); iterator.hasNext(); ) {
+            Marker marker = iterator.next();
+
+            if (marker.name.equals(name)) {
+                iterator.remove();
+                this.unfile(marker);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void saveWaypoints() {
+        File file = this.waypointFile;
+
+        if (file == null) {
+            return;
+        }
+
+        try {
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Could not create " + file.getParentFile());
+            }
+
+            try (Writer writer = new FileWriter(file)) {
+                for (Marker marker : this.waypoints) {
+                    writer.write(MathHelper.floor_double(marker.x) + " " + MathHelper.floor_double(marker.z) + " "
+                            + marker.name + "\n");
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not save mini-map waypoints " + file, e);
+        }
+    }
+
+    private static class Marker {
+        private final int kind;
+
+        /* The entity shown, null for waypoints */
+        private final Entity entity;
+        private final String name;
+
+        /* Where the marker was filed, the entity's position at the time */
+        private double x, z;
+        private int cell;
+        /* Where an entity marker is in the entity list */
+        private int index;
+
+        private Marker(int kind, Entity entity, String name, double x, double z) {
+            this.kind = kind;
+            this.entity = entity;
+            this.name = name;
+            this.x = x;
+            this.z = z;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.material.MapColor;
+
+/**
+ * Lookup tables from map color bytes to texture colors. Map colors are constants, so the tables are built once.
+ */
+public final class MapPalette {
+    /* ARGB of every map color byte, indexed by colorIndex * 4 + shade */
+    private static final int[] COLORS = new int[256];
+
+    /* The checkerboard shown for pixels without a color, indexed by the parity of x + y. Textures are addressed by
+     * sample coordinates, so it stays in place on the world as the map scrolls, where it used to follow the screen.
+     * Following the screen would mean writing every uncolored texel again whenever the map moves an odd distance */
+    private static final int[] UNEXPLORED = {0xFF << 24, 8 + 0xFF << 24};
+
+    static {
+        for (int j = 4; j < 256; ++j) {
+            MapColor mapColor = MapColor.mapColorArray[j / 4];
+
+            if (mapColor != null) {
+                COLORS[j] = mapColor.func_151643_b(j & 3);
+            }
+        }
+    }
+
+    private MapPalette() {
+    }
+
+    /**
+     * @param color the map color byte.
+     * @param x the x coordinate of the texel, its sample coordinate for the map textures, used for the checkerboard of
+     *          uncolored pixels.
+     * @param y the y coordinate of the texel.
+     * @return the ARGB color to show for the map color.
+     */
+    public static int argb(byte color, int x, int y) {
+        int j = color & 255;
+        return j < 4 ? UNEXPLORED[x + y & 1] : COLORS[j];
+    }
+}
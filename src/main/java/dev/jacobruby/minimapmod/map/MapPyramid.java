@@ -0,0 +1,287 @@
+package dev.jacobruby.minimapmod.map;
+
+import java.util.Arrays;
+
+/**
+ * Map colors at every zoom level, level {@code n} having {@code 1 << n} scanned samples along each side of a pixel.
+ * Level 0 holds the scanned map, every level above is downsampled from the one below as its pixels change, so zooming
+ * out never scans more of the world.
+ * <p>
+ * Each level is a window as wide as the map around the viewer, addressed by its own sample coordinates wrapped around
+ * its edges like the mini-map texture. A level covers twice the area of the one below, so only its middle is kept up to
+ * date from below. The rest keeps what it showed when the level below last covered it, and pixels that move into view
+ * are loaded from the {@link TileStore} if there is one.
+ */
+class MapPyramid {
+    /* 1:1 up to 1:16 */
+    static final int LEVELS = 5;
+
+    private int size;
+    private int mask;
+
+    /* Colors per level, by wrapped sample coordinates */
+    private final byte[][] pixels = new byte[LEVELS][];
+
+    /* Sample coordinates of the top left pixel of each level's window, only meaningful for valid levels */
+    private final int[] windowX = new int[LEVELS];
+    private final int[] windowZ = new int[LEVELS];
+    private final boolean[] valid = new boolean[LEVELS];
+    private final boolean[] moved = new boolean[LEVELS];
+
+    /* Pixels changed since the last clearChanged(), by wrapped index */
+    private final int[][] changed = new int[LEVELS][];
+    private final boolean[][] changedFlags = new boolean[LEVELS][];
+    private final int[] changedCount = new int[LEVELS];
+
+    /**
+     * Picks the color of a pixel from the four pixels below it. Pixels show the sample at their corner like scanned
+     * ones do, unless it's unexplored, then the first explored one of the others. Unexplored pixels don't replace what
+     * the pixel showed before, so explored areas stay on the map when the level below forgets them.
+     *
+     * @param corner the pixel below at the same corner.
+     * @param current the color the pixel has now.
+     */
+    static byte downsample(byte corner, byte right, byte below, byte diagonal, byte current) {
+        if (isExplored(corner)) {
+            return corner;
+        } else if (isExplored(right)) {
+            return right;
+        } else if (isExplored(below)) {
+            return below;
+        } else if (isExplored(diagonal)) {
+            return diagonal;
+        }
+
+        return current;
+    }
+
+    /**
+     * @return whether the color shows anything, the four shades of the air color are drawn as unexplored.
+     */
+    private static boolean isExplored(byte color) {
+        return (color & 0xFC) != 0;
+    }
+
+    /**
+     * Reallocates every level for a map of the given resolution. Every level is invalid afterwards.
+     */
+    void resize(int size) {
+        this.size = size;
+        this.mask = size - 1;
+
+        for (int level = 0; level < LEVELS; ++level) {
+            this.pixels[level] = new byte[size * size];
+            this.changed[level] = new int[size * size];
+            this.changedFlags[level] = new boolean[size * size];
+            this.changedCount[level] = 0;
+        }
+
+        this.invalidate();
+    }
+
+    /**
+     * Forgets every level, they are loaded again on the next {@link #move}.
+     */
+    void invalidate() {
+        Arrays.fill(this.valid, false);
+    }
+
+    /**
+     * @return the approximate number of bytes held by the levels.
+     */
+    long memoryBytes() {
+        return (long) this.size * this.size * LEVELS * 6;
+    }
+
+    /**
+     * Centers every level on the viewer. Level 0 must be filled by the caller through {@link #set}, pixels of the other
+     * levels that moved into view are loaded from {@code tiles}, or unexplored without.
+     *
+     * @param scale the blocks per scanned sample, as a power of two.
+     */
+    void move(int xCenter, int zCenter, int scale, TileStore tiles) {
+        int half = this.size / 2;
+
+        for (int level = 0; level < LEVELS; ++level) {
+            int x = xCenter / (1 << scale + level) - half;
+            int z = zCenter / (1 << scale + level) - half;
+            int dx = x - this.windowX[level];
+            int dz = z - this.windowZ[level];
+
+            this.moved[level] = !this.valid[level] || dx != 0 || dz != 0;
+            this.windowX[level] = x;
+            this.windowZ[level] = z;
+
+            if (level == 0) {
+                this.valid[level] = true;
+                continue;
+            }
+
+            if (!this.valid[level] || Math.abs(dx) >= this.size || Math.abs(dz) >= this.size) {
+                this.load(level, tiles, 0, this.size, 0, this.size);
+                this.valid[level] = true;
+                continue;
+            }
+
+            if (dx > 0) {
+                this.load(level, tiles, this.size - dx, this.size, 0, this.size);
+            } else if (dx < 0) {
+                this.load(level, tiles, 0, -dx, 0, this.size);
+            }
+
+            if (dz > 0) {
+                this.load(level, tiles, 0, this.size, this.size - dz, this.size);
+            } else if (dz < 0) {
+                this.load(level, tiles, 0, this.size, 0, -dz);
+            }
+        }
+    }
+
+    /**
+     * Loads the pixels of the given window-relative rectangle of a level.
+     */
+    private void load(int level, TileStore tiles, int colStart, int colEnd, int rowStart, int rowEnd) {
+        for (int row = rowStart; row < rowEnd; ++row) {
+            int z = this.windowZ[level] + row;
+
+            for (int col = colStart; col < colEnd; ++col) {
+                int x = this.windowX[level] + col;
+
+                this.put(level, x & this.mask, z & this.mask, tiles != null ? tiles.get(level, x, z) : 0);
+            }
+        }
+    }
+
+    /**
+     * Sets a pixel of level 0, by wrapped sample coordinates.
+     */
+    void set(int x, int y, byte color) {
+        this.put(0, x, y, color);
+    }
+
+    private void put(int level, int x, int y, byte color) {
+        int index = x + y * this.size;
+
+        if (this.pixels[level][index] == color) {
+            return;
+        }
+
+        this.pixels[level][index] = color;
+
+        if (!this.changedFlags[level][index]) {
+            this.changedFlags[level][index] = true;
+            this.changed[level][this.changedCount[level]++] = index;
+        }
+    }
+
+    /**
+     * Downsamples the pixels changed in each level into the level above, lowest first.
+     */
+    void propagate() {
+        for (int level = 1; level < LEVELS; ++level) {
+            int[] changed = this.changed[level - 1];
+            int count = this.changedCount[level - 1];
+
+            for (int n = 0; n < count; ++n) {
+                /* The parent of the sample the changed pixel shows */
+                int x = this.unwrap(level - 1, true, changed[n] & this.mask) >> 1;
+                int z = this.unwrap(level - 1, false, changed[n] / this.size) >> 1;
+
+                if (!this.inWindow(level, x, z)) {
+                    continue;
+                }
+
+                byte color = downsample(this.get(level - 1, x << 1, z << 1), this.get(level - 1, x << 1 | 1, z << 1),
+                        this.get(level - 1, x << 1, z << 1 | 1), this.get(level - 1, x << 1 | 1, z << 1 | 1),
+                        this.get(level, x, z));
+
+                this.put(level, x & this.mask, z & this.mask, color);
+            }
+        }
+    }
+
+    /**
+     * @return the sample coordinate of the given wrapped coordinate within the window of a level.
+     */
+    private int unwrap(int level, boolean horizontal, int wrapped) {
+        int start = horizontal ? this.windowX[level] : this.windowZ[level];
+        return start + (wrapped - start & this.mask);
+    }
+
+    /**
+     * @return the color of a sample of a level, unexplored outside of its window.
+     */
+    private byte get(int level, int x, int z) {
+        if (!this.inWindow(level, x, z)) {
+            return 0;
+        }
+
+        return this.pixels[level][(x & this.mask) + (z & this.mask) * this.size];
+    }
+
+    private boolean inWindow(int level, int x, int z) {
+        return x - this.windowX[level] >= 0 && x - this.windowX[level] < this.size && z - this.windowZ[level] >= 0
+                && z - this.windowZ[level] < this.size;
+    }
+
+    /**
+     * Writes the colors of a level to {@code colors}, in the order of {@link net.minecraft.world.storage.MapData#colors},
+     * and their texture colors to {@code frame} if it isn't null.
+     *
+     * @param all whether to write every pixel, rather than only those changed since the last {@link #clearChanged()}.
+     *            Needed whenever the level moved or other colors were written in between.
+     */
+    void write(int level, boolean all, byte[] colors, MapFrame frame) {
+        byte[] pixels = this.pixels[level];
+
+        if (all || this.moved[level]) {
+            for (int l1 = 0; l1 < this.size; ++l1) {
+                int y = this.windowZ[level] + l1 & this.mask;
+
+                for (int k1 = 0; k1 < this.size; ++k1) {
+                    int x = this.windowX[level] + k1 & this.mask;
+                    byte color = pixels[x + y * this.size];
+
+                    colors[k1 + l1 * this.size] = color;
+
+                    if (frame != null) {
+                        frame.set(x, y, MapPalette.argb(color, x, y));
+                    }
+                }
+            }
+
+            return;
+        }
+
+        int[] changed = this.changed[level];
+
+        for (int n = 0; n < this.changedCount[level]; ++n) {
+            int x = changed[n] & this.mask;
+            int y = changed[n] / this.size;
+            int k1 = x - this.windowX[level] & this.mask;
+            int l1 = y - this.windowZ[level] & this.mask;
+
+            colors[k1 + l1 * this.size] = pixels[changed[n]];
+
+            if (frame != null) {
+                frame.set(x, y, MapPalette.argb(pixels[changed[n]], x, y));
+            }
+        }
+    }
+
+    /**
+     * Forgets which pixels changed, once they were propagated and written.
+     */
+    void clearChanged() {
+        for (int level = 0; level < LEVELS; ++level) {
+            int[] changed = this.changed[level];
+            boolean[] flags = this.changedFlags[level];
+
+            for (int n = 0; n < this.changedCount[level]; ++n) {
+                flags[changed[n]] = false;
+            }
+
+            this.changedCount[level] = 0;
+        }
+    }
+}
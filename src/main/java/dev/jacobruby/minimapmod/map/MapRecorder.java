@@ -0,0 +1,161 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.Block;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records what the mini-map scans, so it can be replayed without the game by {@code MapReplay} in the benchmark
+ * sources, to time the scan on real movement and to check that every scan mode shades exactly like the reference one.
+ * <p>
+ * A recording is a gzipped stream of records. Each frame record holds the viewer position and heights the scan was
+ * given. Before it come snapshots of every chunk of its window that wasn't recorded yet or changed since. Block state
+ * ids are listed by block name and metadata the first time they occur, so recordings replay with other block ids too.
+ * Must only be used on the client thread.
+ */
+public class MapRecorder {
+    private static final Logger LOGGER = LogManager.getLogger("Mini-Map");
+
+    /* "MMR1", followed by the records */
+    static final int MAGIC = 0x4D4D5231;
+
+    static final int STATE = 1;
+    static final int CHUNK = 2;
+    static final int FRAME = 3;
+
+    private final File file;
+    private DataOutputStream out;
+
+    /* Chunks recorded and unchanged since, by packed chunk coordinates */
+    private final Set<Long> recorded = new HashSet<>();
+    private final boolean[] listedStates = new boolean[1 << 16];
+
+    private final ChunkSnapshot snapshot = new ChunkSnapshot();
+
+    private int frames;
+
+    /**
+     * Creates the file of the recording, replacing an older one.
+     */
+    public MapRecorder(File file) throws IOException {
+        this.file = file;
+
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Could not create " + file.getParentFile());
+        }
+
+        this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+        this.out.writeInt(MAGIC);
+    }
+
+    /**
+     * Records a frame of a job about to be scanned, and the chunks of its window it needs.
+     */
+    void record(World world, ScanJob job) {
+        if (this.out == null) {
+            return;
+        }
+
+        int i = 1 << job.scale;
+        int chunkX0 = job.originX * i >> 4;
+        int chunkZ0 = job.originZ * i >> 4;
+        int chunkX1 = (job.originX + job.resolution - 1) * i >> 4;
+        int chunkZ1 = (job.originZ + job.resolution) * i >> 4;
+
+        try {
+            for (int chunkX = chunkX0; chunkX <= chunkX1; ++chunkX) {
+                for (int chunkZ = chunkZ0; chunkZ <= chunkZ1; ++chunkZ) {
+                    if (this.recorded.add(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ))) {
+                        this.writeChunk(this.snapshot.copy(world.getChunkFromChunkCoords(chunkX, chunkZ), chunkX,
+                                chunkZ));
+                    }
+                }
+            }
+
+            this.out.writeByte(FRAME);
+            this.out.writeShort(job.resolution);
+            this.out.writeInt(job.xCenter);
+            this.out.writeInt(job.zCenter);
+            this.out.writeBoolean(job.cave);
+            this.out.writeShort(job.ground);
+            this.out.writeShort(job.caveHeight);
+            ++this.frames;
+        } catch (IOException e) {
+            LOGGER.warn("Could not write mini-map recording " + this.file, e);
+            this.close();
+        }
+    }
+
+    private void writeChunk(ChunkSnapshot snapshot) throws IOException {
+        for (int section = 0; section < 16; ++section) {
+            char[] ids = snapshot.getSection(section);
+
+            if (ids == null) {
+                continue;
+            }
+
+            for (char id : ids) {
+                if (!this.listedStates[id]) {
+                    this.listedStates[id] = true;
+
+                    /* State ids are the block id followed by 4 bits of metadata */
+                    Block block = Block.getBlockById(id >> 4);
+                    this.out.writeByte(STATE);
+                    this.out.writeChar(id);
+                    this.out.writeUTF(Block.blockRegistry.getNameForObject(block).toString());
+                }
+            }
+        }
+
+        this.out.writeByte(CHUNK);
+        this.out.writeInt(snapshot.xPosition);
+        this.out.writeInt(snapshot.zPosition);
+        snapshot.write(this.out);
+    }
+
+    /**
+     * Records the chunk again when it's next scanned, since its blocks changed or it was loaded or unloaded.
+     */
+    void chunkChanged(int chunkX, int chunkZ) {
+        this.recorded.remove(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+    }
+
+    /**
+     * @return the number of frames recorded so far.
+     */
+    public int getFrames() {
+        return this.frames;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Finishes the file. Nothing is recorded afterwards.
+     */
+    public void close() {
+        if (this.out == null) {
+            return;
+        }
+
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not write mini-map recording " + this.file, e);
+        }
+
+        this.out = null;
+    }
+}
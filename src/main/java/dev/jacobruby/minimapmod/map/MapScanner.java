@@ -0,0 +1,960 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.material.MapColor;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.world.World;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scans map columns into a cache and calculates the map colors from it. The scanner only reads blocks through the
+ * {@link MapChunkSource} of a {@link ScanJob}, so it may run on any thread, but only on one at a time.
+ */
+class MapScanner {
+    /* Full refreshes are scanned in stripes on every core, or serially within the budget if there is only one */
+    private static final int REFRESH_THREADS = Runtime.getRuntime().availableProcessors();
+    static final ForkJoinPool REFRESH_POOL = REFRESH_THREADS > 1 ? new ForkJoinPool(REFRESH_THREADS, pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("Mini-Map Refresh " + thread.getPoolIndex());
+        return thread;
+    }, null, false) : null;
+
+    private static final byte FLAG_PRESENT = 1;
+    private static final byte FLAG_WALL = 2;
+    /* The scan fell through to the void and restarted from the cave height, so it depends on the viewer's height */
+    private static final byte FLAG_VOID = 4;
+
+    /* Flags of packed scan results, above the height, depth and color bits */
+    static final int PACKED_WALL = 1 << 24;
+    static final int PACKED_VOID = 1 << 25;
+
+    /* The column cache is as wide as the map, and holds one extra row, l1 == -1, which only feeds the shading of the
+     * first visible row. 0 before the first scan */
+    private int width, height;
+
+    /* Scan results per sampled column, addressed by sample coordinates wrapped into the cache */
+    private int[] columnHeights;
+    private int[] columnDepths;
+    private byte[] columnColors;
+    private byte[] columnFlags;
+
+    /* Colors remembered by the tile store, shown while a column has no loaded chunk. 0 if nothing is remembered */
+    private byte[] columnRemembered;
+
+    /* Scan results of recently scanned chunks. Surface columns are packed results or MISSING, see scanBlocks */
+    private static final int MISSING = -1;
+
+    private final ChunkCache<int[]> surfaceCache = new ChunkCache<>(() -> {
+        int[] columns = new int[256];
+        Arrays.fill(columns, MISSING);
+        return columns;
+    }, columns -> Arrays.fill(columns, MISSING));
+
+    private final ChunkCache<CaveColumns> caveCache = new ChunkCache<>(CaveColumns::new, CaveColumns::clear);
+
+    /* The scanned colors and every zoom level downsampled from them, and the level written to the output */
+    private final MapPyramid pyramid = new MapPyramid();
+    private int writtenZoom;
+
+    /* Why a column is waiting to be scanned, by cache index */
+    private static final byte QUEUED_CHANGED = 1;
+    private static final byte QUEUED_NEW = 2;
+
+    /* Window-relative column positions, row * width + k1, nearest to the viewer first */
+    private int[] scanOrder;
+
+    private byte[] columnQueued;
+    private int changedCount, newCount;
+    /* Scan order positions before which no column is queued, for each reason */
+    private int changedCursor, newCursor;
+
+    /* Map x columns (k1) whose pixels must be re-shaded */
+    private boolean[] shadeDirty;
+
+    /* The first map x column (k1) of each stripe of a full refresh, and one past the last of the last stripe */
+    private int[] stripeStarts;
+    private int stripeCount;
+    /* Cave bitmaps of the chunk each stripe is in, stripes don't share chunks */
+    private CaveColumns[] stripeCaves = new CaveColumns[0];
+
+    /* Columns scanned by the current scan */
+    private int scannedColumns;
+
+    /* The state the column cache was built with. Any change to these forces a full rescan */
+    private World scannedWorld;
+    private TileStore scannedTiles;
+    private int scannedScale = -1;
+    private boolean scannedCave;
+    private int scannedGround, scannedCaveHeight;
+
+    private int originX, originZ;
+
+    /**
+     * @return the number of cached columns of a map with the given resolution.
+     */
+    static int cacheSize(int resolution) {
+        return resolution * (resolution + 1);
+    }
+
+    /**
+     * @return the cache index of the given sample coordinates, in the cache of a map with the given resolution.
+     */
+    static int cacheIndex(int sampleX, int sampleZ, int resolution) {
+        return Math.floorMod(sampleX, resolution) + Math.floorMod(sampleZ, resolution + 1) * resolution;
+    }
+
+    /**
+     * Sorts the window by distance to the viewer, who stands at the center pixel, {@code k1 == l1 == width / 2}.
+     */
+    private static int[] scanOrder(int width, int height) {
+        long[] keys = new long[width * height];
+        int half = width / 2;
+
+        for (int row = 0; row < height; ++row) {
+            for (int k1 = 0; k1 < width; ++k1) {
+                int x = k1 - half;
+                int z = row - 1 - half;
+                int position = row * width + k1;
+
+                keys[position] = (long) (x * x + z * z) << 32 | position;
+            }
+        }
+
+        Arrays.sort(keys);
+
+        int[] order = new int[keys.length];
+
+        for (int n = 0; n < keys.length; ++n) {
+            order[n] = (int) keys[n];
+        }
+
+        return order;
+    }
+
+    /**
+     * Reallocates the column cache for a map of the given resolution.
+     */
+    private void resize(int resolution) {
+        this.width = resolution;
+        this.height = resolution + 1;
+
+        this.columnHeights = new int[this.width * this.height];
+        this.columnDepths = new int[this.width * this.height];
+        this.columnColors = new byte[this.width * this.height];
+        this.columnFlags = new byte[this.width * this.height];
+        this.columnRemembered = new byte[this.width * this.height];
+        this.columnQueued = new byte[this.width * this.height];
+        this.shadeDirty = new boolean[this.width];
+        this.stripeStarts = new int[this.width + 1];
+        this.scanOrder = scanOrder(this.width, this.height);
+        this.pyramid.resize(resolution);
+    }
+
+    /**
+     * Forces the next scan to rescan every column.
+     */
+    void invalidate() {
+        this.scannedWorld = null;
+    }
+
+    /**
+     * Carries the cached columns over to a new instance of the scanned world, like when returning to a dimension.
+     * Chunks are invalidated by the world as they load again, everything else keeps its cached results. A tile store
+     * opened again in the same directory doesn't count as a change either.
+     */
+    void rebind(World world) {
+        if (this.scannedWorld != null) {
+            this.scannedWorld = world;
+        }
+    }
+
+    /**
+     * @return the approximate number of bytes held by the column cache and the chunk caches.
+     */
+    long memoryBytes() {
+        /* Heights, depths, colors, flags, remembered colors, queue state and scan order per cached column */
+        long columns = (long) this.width * this.height * 16;
+        /* A surface is 256 packed results, the cave bitmaps of a chunk two 8 kilobyte arrays and the filled sections */
+        long surfaces = this.surfaceCache.allocated() * 1040L;
+        long caves = this.caveCache.allocated() * 16912L;
+
+        return columns + surfaces + caves + this.pyramid.memoryBytes();
+    }
+
+    /**
+     * Brings the column cache up to date with the {@code job} and writes the colors of every changed pixel to
+     * {@code colors}, and their texture colors to {@code frame} if it isn't null.
+     * <p>
+     * Columns that need scanning are queued, and scanned within the job's time budget. Columns the world changed come
+     * first, then columns that scrolled into view, each nearest to the viewer first, so the corners of the map that the
+     * round mini-map never shows come last. Columns that aren't reached stay queued for the next scan. Columns that
+     * scrolled into view are shown as unexplored until they are scanned, changed columns keep their old colors.
+     * <p>
+     * With a {@link TileStore}, columns without a loaded chunk show the colors remembered from earlier scans instead,
+     * and changed colors are recorded to it.
+     * <p>
+     * Zoomed out jobs are written from the {@link MapPyramid}, which is brought up to date by every scan, so the zoom
+     * can change without scanning anything.
+     * <p>
+     * Everything is queued again when the world, the resolution or the scale changes, or the map moves further than its
+     * width. Changes of the cave scan heights queue every column as changed.
+     * <p>
+     * When every column is queued and the job's chunks may be read concurrently, everything is scanned at once, in
+     * parallel, regardless of the budget.
+     */
+    void scan(ScanJob job, byte[] colors, MapFrame frame) {
+        this.scannedColumns = 0;
+
+        /* Blocks per pixel, every pixel shows the column at its corner */
+        int i = 1 << job.scale;
+        int dx = job.originX - this.originX;
+        int dz = job.originZ - this.originZ;
+
+        boolean reset = job.world != this.scannedWorld || job.resolution != this.width || job.scale != this.scannedScale
+                || job.cave != this.scannedCave || !sameStore(job.tiles, this.scannedTiles)
+                || Math.abs(dx) >= this.width || Math.abs(dz) >= this.height;
+
+        /* A store of the same directory, opened again when returning to a dimension, remembers the same colors */
+        this.scannedTiles = job.tiles;
+
+        if (job.resolution != this.width) {
+            this.resize(job.resolution);
+        }
+
+        this.originX = job.originX;
+        this.originZ = job.originZ;
+
+        if (job.world != this.scannedWorld || job.invalidChunksOverflow) {
+            this.surfaceCache.clear();
+            this.caveCache.clear();
+        } else {
+            for (int n = 0; n < job.invalidChunkCount; ++n) {
+                this.surfaceCache.invalidate(job.invalidChunks[n]);
+                this.caveCache.invalidate(job.invalidChunks[n]);
+            }
+        }
+
+        this.surfaceCache.setCapacity(job.surfaceCacheChunks);
+        this.caveCache.setCapacity(job.caveCacheChunks);
+
+        if (reset) {
+            this.scannedWorld = job.world;
+            this.scannedScale = job.scale;
+            this.scannedCave = job.cave;
+            this.scannedGround = job.ground;
+            this.scannedCaveHeight = job.caveHeight;
+
+            Arrays.fill(this.columnFlags, (byte) 0);
+            this.rememberRect(0, this.width, 0, this.height);
+            Arrays.fill(this.columnQueued, QUEUED_NEW);
+            this.changedCount = 0;
+            this.newCount = this.columnQueued.length;
+            this.changedCursor = this.newCursor = 0;
+
+            Arrays.fill(this.shadeDirty, true);
+            this.pyramid.invalidate();
+
+            if (frame != null) {
+                /* The frame may have been filled by another scan, so don't trust what it holds */
+                frame.markAllDirty();
+            }
+        } else {
+            /* Queue the strips that scrolled into view. Cached columns stay where they are, only the origin moves */
+            if (dx > 0) {
+                this.queueRect(this.width - dx, this.width, 0, this.height);
+                this.rememberRect(this.width - dx, this.width, 0, this.height);
+            } else if (dx < 0) {
+                this.queueRect(0, -dx, 0, this.height);
+                this.rememberRect(0, -dx, 0, this.height);
+            }
+
+            if (dz > 0) {
+                this.queueRect(0, this.width, this.height - dz, this.height);
+                this.rememberRect(0, this.width, this.height - dz, this.height);
+            } else if (dz < 0) {
+                this.queueRect(0, this.width, 0, -dz);
+                this.rememberRect(0, this.width, 0, -dz);
+            }
+
+            if (job.cave && (job.ground != this.scannedGround || job.caveHeight != this.scannedCaveHeight)) {
+                /* Every column was scanned from the old heights */
+                for (int index = 0; index < this.columnQueued.length; ++index) {
+                    this.queue(index, QUEUED_CHANGED);
+                }
+
+                this.scannedGround = job.ground;
+                this.scannedCaveHeight = job.caveHeight;
+            }
+
+            /* Queue the columns the world changed. A stationary player in an idle world only pays for these. The
+             * column may have scrolled out since it was marked, then this rescans its replacement */
+            for (int n = 0; n < job.dirtyCount; ++n) {
+                this.queue(job.dirty[n], QUEUED_CHANGED);
+            }
+
+            if (!job.cave && job.caveHeight != this.scannedCaveHeight) {
+                /* Columns that fell through to the void were scanned down from the old viewer height */
+                for (int index = 0; index < this.columnFlags.length; ++index) {
+                    if ((this.columnFlags[index] & FLAG_VOID) != 0) {
+                        this.queue(index, QUEUED_CHANGED);
+                    }
+                }
+
+                this.scannedCaveHeight = job.caveHeight;
+            }
+
+            if (dx != 0 || dz != 0) {
+                /* Every pixel now maps to a different column, and the scan order to different cache indices */
+                Arrays.fill(this.shadeDirty, true);
+                this.changedCursor = this.newCursor = 0;
+            }
+        }
+
+        if (REFRESH_POOL != null && job.source.isConcurrent() && (this.changedCount == this.columnQueued.length
+                || this.newCount == this.columnQueued.length)) {
+            this.refresh(job, i);
+        }
+
+        long deadline = job.scanBudget > 0 ? System.nanoTime() + job.scanBudget : Long.MAX_VALUE;
+
+        this.changedCursor = this.scanQueued(job, i, QUEUED_CHANGED, this.changedCursor, deadline);
+
+        if (this.changedCount == 0) {
+            this.newCursor = this.scanQueued(job, i, QUEUED_NEW, this.newCursor, deadline);
+        }
+
+        job.scannedColumns = this.scannedColumns;
+
+        this.pyramid.move(job.xCenter, job.zCenter, job.scale, this.scannedTiles);
+
+        if (job.zoom == 0) {
+            if (this.writtenZoom != 0) {
+                /* The output holds another level, every pixel must be written again */
+                Arrays.fill(this.shadeDirty, true);
+            }
+
+            this.shade(i, colors, frame);
+            this.pyramid.propagate();
+        } else {
+            this.shade(i, null, null);
+            this.pyramid.propagate();
+            this.pyramid.write(job.zoom, reset || job.zoom != this.writtenZoom, colors, frame);
+        }
+
+        this.pyramid.clearChanged();
+        this.writtenZoom = job.zoom;
+
+        if (this.scannedTiles != null) {
+            this.scannedTiles.flush();
+        }
+    }
+
+    private static boolean sameStore(TileStore a, TileStore b) {
+        return a == b || a != null && b != null && a.getDirectory().equals(b.getDirectory());
+    }
+
+    /**
+     * @return whether columns are still waiting to be scanned, because the last scan ran out of time.
+     */
+    boolean hasQueuedColumns() {
+        return this.changedCount > 0 || this.newCount > 0;
+    }
+
+    /**
+     * Queues the columns in the given window-relative rectangle as newly in view, and clears them until they are
+     * scanned. Rows are offset by one, row {@code 0} is {@code l1 == -1}.
+     */
+    private void queueRect(int colStart, int colEnd, int rowStart, int rowEnd) {
+        for (int k1 = colStart; k1 < colEnd; ++k1) {
+            for (int row = rowStart; row < rowEnd; ++row) {
+                int index = cacheIndex(this.originX + k1, this.originZ + row, this.width);
+
+                this.columnFlags[index] = 0;
+                this.queue(index, QUEUED_NEW);
+            }
+        }
+    }
+
+    /**
+     * Loads the remembered colors of the columns in the given window-relative rectangle from the tile store. Rows are
+     * offset by one, like {@link #queueRect}.
+     */
+    private void rememberRect(int colStart, int colEnd, int rowStart, int rowEnd) {
+        for (int k1 = colStart; k1 < colEnd; ++k1) {
+            for (int row = rowStart; row < rowEnd; ++row) {
+                int index = cacheIndex(this.originX + k1, this.originZ + row, this.width);
+
+                this.columnRemembered[index] = this.scannedTiles != null
+                        ? this.scannedTiles.get(this.originX + k1, this.originZ + row) : 0;
+            }
+        }
+    }
+
+    private void queue(int index, byte reason) {
+        if ((this.columnQueued[index] & reason) != 0) {
+            return;
+        }
+
+        this.columnQueued[index] |= reason;
+
+        if (reason == QUEUED_CHANGED) {
+            ++this.changedCount;
+            this.changedCursor = 0;
+        } else {
+            ++this.newCount;
+            this.newCursor = 0;
+        }
+    }
+
+    /**
+     * Scans the columns queued for the given reason in scan order, starting at the {@code cursor}, until none are left
+     * or the {@code deadline} passed.
+     *
+     * @return the scan order position to continue from, nothing before it is queued for the reason.
+     */
+    private int scanQueued(ScanJob job, int i, byte reason, int cursor, long deadline) {
+        int scanned = 0;
+
+        while (cursor < this.scanOrder.length && (reason == QUEUED_CHANGED ? this.changedCount : this.newCount) > 0) {
+            int k1 = this.scanOrder[cursor] % this.width;
+            int row = this.scanOrder[cursor] / this.width;
+            int index = cacheIndex(this.originX + k1, this.originZ + row, this.width);
+
+            if ((this.columnQueued[index] & reason) != 0) {
+                /* Reading the clock isn't free, so only check it every few columns */
+                if ((scanned++ & 15) == 15 && System.nanoTime() >= deadline) {
+                    break;
+                }
+
+                this.scanAt(job, k1, row, index, i);
+            }
+
+            ++cursor;
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Scans the cached column at the given window-relative position. Rows are offset by one, row {@code 0} is
+     * {@code l1 == -1}.
+     */
+    private void scanAt(ScanJob job, int k1, int row, int index, int i) {
+        byte queued = this.columnQueued[index];
+
+        if ((queued & QUEUED_CHANGED) != 0) {
+            --this.changedCount;
+        }
+
+        if ((queued & QUEUED_NEW) != 0) {
+            --this.newCount;
+        }
+
+        this.columnQueued[index] = 0;
+        ++this.scannedColumns;
+
+        /* Calculate world coordinates */
+        int k2 = (this.originX + k1) * i;
+        int l2 = (this.originZ + row) * i;
+
+        MapChunk chunk = job.source.getChunk(k2 >> 4, l2 >> 4);
+
+        if (this.scanColumn(chunk, k2, l2, index, job)) {
+            this.shadeDirty[k1] = true;
+        }
+    }
+
+    /**
+     * Scans every column, split into stripes of whole chunk columns which are scanned in parallel. Stripes own the map x
+     * columns (k1) they scan, and shading only carries {@code d0} along a map column, so the result is the same as the
+     * serial scan's.
+     * <p>
+     * Stripes don't use the chunk caches, which aren't thread-safe. Surface results are put in the cache afterwards.
+     */
+    private void refresh(ScanJob job, int i) {
+        /* A few stripes per thread, so threads that finish early can take over the rest */
+        int chunkX0 = this.originX * i >> 4;
+        int chunks = ((this.originX + this.width - 1) * i >> 4) - chunkX0 + 1;
+        this.stripeCount = Math.min(chunks, REFRESH_THREADS * 4);
+
+        if (this.stripeCaves.length < this.stripeCount) {
+            this.stripeCaves = new CaveColumns[this.stripeCount];
+
+            for (int stripe = 0; stripe < this.stripeCount; ++stripe) {
+                this.stripeCaves[stripe] = new CaveColumns();
+            }
+        }
+
+        int stripe = 0;
+
+        for (int k1 = 0; k1 < this.width; ++k1) {
+            int chunk = ((this.originX + k1) * i >> 4) - chunkX0;
+
+            /* Chunk 'chunk' goes to stripe chunk * stripeCount / chunks */
+            while (stripe < this.stripeCount && chunk * this.stripeCount >= stripe * chunks) {
+                this.stripeStarts[stripe++] = k1;
+            }
+        }
+
+        this.stripeStarts[this.stripeCount] = this.width;
+
+        REFRESH_POOL.invoke(new StripeTask(job, i, 0, this.stripeCount));
+        this.scannedColumns += this.columnQueued.length;
+
+        Arrays.fill(this.columnQueued, (byte) 0);
+        this.changedCount = this.newCount = 0;
+        this.changedCursor = this.newCursor = 0;
+        Arrays.fill(this.shadeDirty, true);
+
+        if (!job.cave) {
+            this.cacheSurfaces(i);
+        }
+    }
+
+    /**
+     * Scans the columns of the given stripe, on a refresh thread. The stripe is walked a chunk at a time, so each chunk
+     * is looked up once and its cave bitmaps are cleared once, and filled by every column of the chunk.
+     */
+    private void scanStripe(ScanJob job, int i, int stripe) {
+        CaveColumns caves = this.stripeCaves[stripe];
+        int k1Start = this.stripeStarts[stripe];
+        int k1End = this.stripeStarts[stripe + 1];
+
+        for (int rowStart = 0, rowEnd; rowStart < this.height; rowStart = rowEnd) {
+            int chunkZ = (this.originZ + rowStart) * i >> 4;
+            rowEnd = rowStart + 1;
+
+            while (rowEnd < this.height && (this.originZ + rowEnd) * i >> 4 == chunkZ) {
+                ++rowEnd;
+            }
+
+            for (int chunkK1 = k1Start, chunkK1End; chunkK1 < k1End; chunkK1 = chunkK1End) {
+                int chunkX = (this.originX + chunkK1) * i >> 4;
+                chunkK1End = chunkK1 + 1;
+
+                while (chunkK1End < k1End && (this.originX + chunkK1End) * i >> 4 == chunkX) {
+                    ++chunkK1End;
+                }
+
+                MapChunk chunk = job.source.getChunk(chunkX, chunkZ);
+                boolean empty = chunk.isEmpty();
+
+                if (job.cave && !empty) {
+                    caves.clear();
+                }
+
+                for (int k1 = chunkK1; k1 < chunkK1End; ++k1) {
+                    for (int row = rowStart; row < rowEnd; ++row) {
+                        int index = cacheIndex(this.originX + k1, this.originZ + row, this.width);
+
+                        if (empty) {
+                            this.clearColumn(index);
+                            continue;
+                        }
+
+                        int k2 = (this.originX + k1) * i & 15;
+                        int l2 = (this.originZ + row) * i & 15;
+                        int packed = job.cave ? this.scanCave(chunk, caves, k2, l2, job.ground, job.caveHeight)
+                                : this.scanBlocks(chunk, k2, l2, false, job.ground, job.caveHeight);
+
+                        this.storeColumn(index, packed);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts the surface results of a refresh into the surface cache.
+     */
+    private void cacheSurfaces(int i) {
+        for (int row = 0; row < this.height; ++row) {
+            for (int k1 = 0; k1 < this.width; ++k1) {
+                int index = cacheIndex(this.originX + k1, this.originZ + row, this.width);
+                byte flags = this.columnFlags[index];
+
+                if ((flags & FLAG_PRESENT) == 0 || (flags & FLAG_VOID) != 0) {
+                    continue;
+                }
+
+                int k2 = (this.originX + k1) * i;
+                int l2 = (this.originZ + row) * i;
+
+                this.surfaceCache.getChunk(k2 >> 4, l2 >> 4)[(l2 & 15) << 4 | k2 & 15] = this.columnHeights[index]
+                        | this.columnDepths[index] << 9 | this.columnColors[index] << 18;
+            }
+        }
+    }
+
+    /**
+     * Scans a range of stripes, splitting it until there is one stripe per task.
+     */
+    private class StripeTask extends RecursiveAction {
+        private final ScanJob job;
+        private final int i;
+        private final int from, to;
+
+        private StripeTask(ScanJob job, int i, int from, int to) {
+            this.job = job;
+            this.i = i;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from == 1) {
+                MapScanner.this.scanStripe(this.job, this.i, this.from);
+                return;
+            }
+
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new StripeTask(this.job, this.i, this.from, middle),
+                    new StripeTask(this.job, this.i, middle, this.to));
+        }
+    }
+
+    /**
+     * Scans a single column and stores its height, depth and color in the cache.
+     *
+     * @return whether the cached column changed.
+     */
+    private boolean scanColumn(MapChunk chunk, int k2, int l2, int index, ScanJob job) {
+        if (chunk.isEmpty()) {
+            return this.clearColumn(index);
+        }
+
+        int i3 = k2 & 15;
+        int j3 = l2 & 15;
+        int packed;
+
+        if (job.cave) {
+            CaveColumns columns = this.caveCache.getChunk(k2 >> 4, l2 >> 4);
+            packed = this.scanCave(chunk, columns, i3, j3, job.ground, job.caveHeight);
+        } else {
+            /* Surface results don't depend on the viewer, unless the scan fell through to the void */
+            int[] surface = this.surfaceCache.getChunk(k2 >> 4, l2 >> 4);
+            packed = surface[j3 << 4 | i3];
+
+            if (packed == MISSING) {
+                packed = this.scanBlocks(chunk, i3, j3, false, job.ground, job.caveHeight);
+
+                if ((packed & PACKED_VOID) == 0) {
+                    surface[j3 << 4 | i3] = packed;
+                }
+            }
+        }
+
+        return this.storeColumn(index, packed);
+    }
+
+    /**
+     * Marks a column as having no chunk, its pixel is drawn as unexplored.
+     *
+     * @return whether the cached column changed.
+     */
+    private boolean clearColumn(int index) {
+        boolean changed = this.columnFlags[index] != 0;
+        this.columnFlags[index] = 0;
+        return changed;
+    }
+
+    /**
+     * Stores the packed result of a column scan in the cache.
+     *
+     * @return whether the cached column changed.
+     */
+    private boolean storeColumn(int index, int packed) {
+        byte flags = FLAG_PRESENT;
+
+        if ((packed & PACKED_WALL) != 0) {
+            flags |= FLAG_WALL;
+        }
+
+        if ((packed & PACKED_VOID) != 0) {
+            flags |= FLAG_VOID;
+        }
+
+        int k4 = packed & 511;
+        int k3 = packed >> 9 & 511;
+        byte colorIndex = (byte) (packed >> 18 & 63);
+
+        boolean changed = this.columnFlags[index] != flags || this.columnHeights[index] != k4
+                || this.columnDepths[index] != k3 || this.columnColors[index] != colorIndex;
+
+        this.columnFlags[index] = flags;
+        this.columnHeights[index] = k4;
+        this.columnDepths[index] = k3;
+        this.columnColors[index] = colorIndex;
+
+        return changed;
+    }
+
+    /**
+     * Finds the visible block of a column. Cave scans go through {@link #scanCave}, the cave walk here is the reference
+     * it's tested against.
+     *
+     * @return the height of the block, the liquid depth below it, its map color index and the {@code PACKED_} flags,
+     *         packed into an int.
+     */
+    int scanBlocks(MapChunk chunk, int i3, int j3, boolean cave, int ground, int caveHeight) {
+        int k3 = 0;
+        int flags = 0;
+
+        int k4 = cave ? ground : chunk.getHeightValue(i3, j3) + 1;
+
+        k4 = Math.max(0, k4);
+
+        int k5 = k4;
+        IBlockState iblockstate;
+
+        label541:
+        {
+            iblockstate = chunk.getBlockState(i3, k4, j3);
+
+            if (cave && iblockstate.getBlock().getMapColor(iblockstate) != MapColor.airColor) {
+                /* If the block is solid, start scanning upward for air */
+                do {
+                    k4++;
+
+                    if (k4 >= caveHeight) {
+                        /* If the scan reached the cave height calculated earlier, then use the
+                         * current block, and make it dark to make solid walls more distinct */
+                        flags |= PACKED_WALL;
+                        break label541;
+                    }
+
+                    iblockstate = chunk.getBlockState(i3, k4, j3);
+                } while (iblockstate.getBlock().getMapColor(iblockstate) != MapColor.airColor);
+            }
+
+            boolean voidLoop = false;
+
+            /* Now scan downward to find the first non-air-colored block */
+            while (iblockstate.getBlock().getMapColor(iblockstate) == MapColor.airColor) {
+                --k4;
+
+                if (k4 < 0) {
+                    /* If we hit the void, start back up from the cave height and go down */
+                    voidLoop = true;
+                    flags |= PACKED_VOID;
+                    k4 = caveHeight;
+                }
+
+                if (voidLoop && k4 <= k5) {
+                    /* If we reach where we started, there are no visible blocks, display air */
+                    break;
+                }
+
+                iblockstate = chunk.getBlockState(i3, k4, j3);
+            }
+
+            if (k4 > 0 && iblockstate.getBlock().getMaterial().isLiquid()) {
+                /* If we hit a liquid, calculate the distance between the surface of the liquid,
+                 * and the solid block below it, depth. */
+
+                int l4 = k4 - 1;
+
+                while (true) {
+                    Block block = chunk.getBlock(i3, l4--, j3);
+                    ++k3;
+
+                    if (l4 <= 0 || !block.getMaterial().isLiquid()) {
+                        break label541;
+                    }
+                }
+            }
+        }
+
+        int colorIndex = iblockstate.getBlock().getMapColor(iblockstate).colorIndex;
+
+        return k4 | k3 << 9 | colorIndex << 18 | flags;
+    }
+
+    /**
+     * The cave scan of {@link #scanBlocks}, answered from the air and liquid bitmaps of the column instead of reading
+     * block by block. The results are the same.
+     */
+    int scanCave(MapChunk chunk, CaveColumns columns, int i3, int j3, int ground, int caveHeight) {
+        int k3 = 0;
+        int flags = 0;
+
+        int k4 = Math.max(0, ground);
+        int k5 = k4;
+
+        /* The block whose color is shown, usually at k4 */
+        int stateY;
+
+        label541:
+        {
+            if (!columns.isAir(chunk, i3, j3, k4)) {
+                /* If the block is solid, find the first air above it, below the cave height */
+                int air = columns.nextAir(chunk, i3, j3, k4 + 1, caveHeight);
+
+                if (air < 0) {
+                    /* Solid up to the cave height, use the last solid block and make it dark */
+                    flags |= PACKED_WALL;
+                    k4 = Math.max(k4 + 1, caveHeight);
+                    stateY = k4 - 1;
+                    break label541;
+                }
+
+                k4 = air;
+            }
+
+            /* Now find the first non-air-colored block below */
+            int solid = columns.previousSolid(chunk, i3, j3, k4 - 1, 0);
+
+            if (solid >= 0) {
+                k4 = stateY = solid;
+            } else {
+                /* If we hit the void, look down from the cave height to where we started */
+                flags |= PACKED_VOID;
+
+                if (caveHeight <= k5) {
+                    k4 = caveHeight;
+                    stateY = 0;
+                } else {
+                    solid = columns.previousSolid(chunk, i3, j3, caveHeight, k5 + 1);
+
+                    if (solid >= 0) {
+                        k4 = stateY = solid;
+                    } else {
+                        /* There are no visible blocks, display air */
+                        k4 = k5;
+                        stateY = k5 + 1;
+                    }
+                }
+            }
+
+            if (k4 > 0 && columns.isLiquid(chunk, i3, j3, stateY)) {
+                /* The depth walk reads down from k4 - 1, and stops at the first non-liquid or at y 1 */
+                int bottom = Math.max(columns.previousNonLiquid(chunk, i3, j3, k4 - 1), Math.min(1, k4 - 1));
+                k3 = k4 - bottom;
+            }
+        }
+
+        IBlockState iblockstate = chunk.getBlockState(i3, stateY, j3);
+        int colorIndex = iblockstate.getBlock().getMapColor(iblockstate).colorIndex;
+
+        return k4 | k3 << 9 | colorIndex << 18 | flags;
+    }
+
+    /**
+     * Calculates the colors of every dirty map column from the cached scan results. Columns without a loaded chunk show
+     * their remembered color, unexplored if there is none.
+     */
+    private void shade(int i, byte[] colors, MapFrame frame) {
+        for (int k1 = 0; k1 < this.width; ++k1) {
+            if (!this.shadeDirty[k1]) {
+                continue;
+            }
+
+            this.shadeDirty[k1] = false;
+
+            /* d0 is used as a placeholder for the previous scanned block's y level */
+            double d0 = 0.0D;
+
+            for (int l1 = -1; l1 < this.width; ++l1) {
+                int index = cacheIndex(this.originX + k1, this.originZ + l1 + 1, this.width);
+                byte flags = this.columnFlags[index];
+
+                if ((flags & FLAG_PRESENT) == 0) {
+                    if (l1 >= 0) {
+                        this.store(k1, l1, this.columnRemembered[index], colors, frame);
+                    }
+
+                    continue;
+                }
+
+                int k2 = (this.originX + k1) * i;
+                int l2 = (this.originZ + l1 + 1) * i;
+
+                if ((flags & FLAG_WALL) != 0) {
+                    /* This makes it so the current block is "2 blocks lower than the previous block" */
+                    d0 += 2;
+                }
+
+                /* Only one column is sampled per pixel, so its height is the average height of the pixel */
+                double d1 = this.columnHeights[index];
+                MapColor mapColor = MapColor.mapColorArray[this.columnColors[index]];
+
+                double d2;
+                int i5;
+
+                if (mapColor == MapColor.waterColor) {
+                    /* If it's water, calculate shading based on depth, calculated earlier */
+                    int k3 = this.columnDepths[index];
+                    d2 = (double) k3 * 0.1D + (double) (k2 + l2 & 1) * 0.2D;
+                    i5 = 1;
+
+                    if (d2 < 0.5D) {
+                        i5 = 2;
+                    }
+
+                    if (d2 > 0.9D) {
+                        i5 = 0;
+                    }
+
+                    if (d2 > 1.5D) {
+                        i5 = 3;
+                    }
+                } else {
+                    /* Otherwise, calculate shading based on height difference from the previous block */
+                    d2 = (d1 - d0) * 4.0D / (double) (i + 4) + ((double) (k2 + l2 & 1) - 0.5D) * 0.4D;
+                    i5 = 1;
+
+                    if (d2 > 0.6D) {
+                        i5 = 2;
+                    }
+
+                    if (d2 < -0.6D) {
+                        i5 = 0;
+                    }
+
+                    if (d2 < -1.0D) {
+                        i5 = 3;
+                    }
+                }
+
+                /* Update d0 to this block's y level */
+                d0 = d1;
+
+                if (l1 >= 0) {
+                    /* Calculate color, and store */
+                    byte b1 = (byte) (mapColor.colorIndex * 4 + i5);
+                    this.store(k1, l1, b1, colors, frame);
+
+                    if (this.scannedTiles != null && this.columnRemembered[index] != b1) {
+                        this.columnRemembered[index] = b1;
+                        this.scannedTiles.record(this.originX + k1, this.originZ + l1 + 1, b1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the color of a pixel in level 0 of the pyramid, and in {@code colors} and {@code frame} unless they are
+     * null.
+     */
+    private void store(int k1, int l1, byte color, byte[] colors, MapFrame frame) {
+        /* Frames and the pyramid are addressed like the texture, by sample coordinates */
+        int x = this.originX + k1 & this.width - 1;
+        int y = this.originZ + l1 + 1 & this.width - 1;
+
+        this.pyramid.set(x, y, color);
+
+        if (colors != null) {
+            colors[k1 + l1 * this.width] = color;
+        }
+
+        if (frame != null) {
+            frame.set(x, y, MapPalette.argb(color, x, y));
+        }
+    }
+}
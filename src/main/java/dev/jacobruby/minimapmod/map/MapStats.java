@@ -0,0 +1,215 @@
+package dev.jacobruby.minimapmod.map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers of the mini-map's work, for the debug overlay and the stats log. Counters are summed per second,
+ * timers keep their recent durations for percentiles. Must only be used on the client thread, except for the block
+ * probes which the scan threads count.
+ * <p>
+ * Nothing is counted unless the stats are handed to the map and renderer, which is how they are turned off.
+ */
+public class MapStats {
+    private static final Logger LOGGER = LogManager.getLogger("Mini-Map");
+
+    private static final long SECOND = 1_000_000_000L;
+
+    public final Timer update = new Timer("update");
+    public final Timer scan = new Timer("scan");
+    public final Timer postTexture = new Timer("post");
+    public final Timer updateTexture = new Timer("upload");
+    public final Timer render = new Timer("render");
+
+    private final Timer[] timers = {this.update, this.scan, this.postTexture, this.updateTexture, this.render};
+
+    /* Blocks the scan read, counted by the scan threads */
+    final LongAdder probes = new LongAdder();
+
+    /* Columns scanned and texels uploaded during the current second */
+    private long columns;
+    private long texels;
+
+    /* Totals of the last full second */
+    private long lastColumns, lastProbes, lastTexels;
+
+    /* Totals since the last log line */
+    private long loggedColumns, loggedProbes, loggedTexels;
+
+    private long secondStart = System.nanoTime();
+    private long logStart = this.secondStart;
+
+    private File logFile;
+    private int logSeconds;
+
+    /**
+     * Reports a finished scan.
+     */
+    void addScan(int columns, long nanos) {
+        this.columns += columns;
+        this.scan.record(nanos);
+    }
+
+    /**
+     * Reports texels uploaded to the mini-map texture, four bytes each.
+     */
+    void addUpload(int texels) {
+        this.texels += texels;
+    }
+
+    /**
+     * Sets where and how often the stats are logged, as CSV.
+     *
+     * @param seconds the seconds between log lines, 0 to log nothing.
+     */
+    public void setLog(File file, int seconds) {
+        this.logFile = file;
+        this.logSeconds = seconds;
+    }
+
+    /**
+     * Sums up the counters and percentiles once a second has passed, and writes a log line once it's due. Called every
+     * tick.
+     */
+    public void tick() {
+        long now = System.nanoTime();
+
+        if (now - this.secondStart < SECOND) {
+            return;
+        }
+
+        this.lastColumns = this.columns;
+        this.lastProbes = this.probes.sumThenReset();
+        this.lastTexels = this.texels;
+        this.loggedColumns += this.lastColumns;
+        this.loggedProbes += this.lastProbes;
+        this.loggedTexels += this.lastTexels;
+        this.columns = this.texels = 0;
+        this.secondStart = now;
+
+        for (Timer timer : this.timers) {
+            timer.summarize();
+        }
+
+        if (this.logSeconds <= 0 || this.logFile == null) {
+            this.logStart = now;
+            this.loggedColumns = this.loggedProbes = this.loggedTexels = 0;
+        } else if (now - this.logStart >= this.logSeconds * SECOND) {
+            this.log(now);
+        }
+    }
+
+    /**
+     * @return the lines of the debug overlay, the totals of the last second and the median and 99th percentile of recent
+     *         durations.
+     */
+    public List<String> lines() {
+        List<String> lines = new ArrayList<>();
+
+        for (Timer timer : this.timers) {
+            lines.add(String.format("%s %.2f / %.2f ms", timer.name, timer.p50 / 1000D, timer.p99 / 1000D));
+        }
+
+        lines.add(this.lastColumns + " columns/s");
+        lines.add(this.lastProbes + " blocks/s");
+        lines.add(this.lastTexels + " texels/s, " + this.lastTexels * 4 / 1024 + " KB/s");
+
+        return lines;
+    }
+
+    /**
+     * Appends the totals since the last line and the current percentiles to the log file, with a header if it's new.
+     */
+    private void log(long now) {
+        File file = this.logFile;
+        double seconds = (now - this.logStart) / (double) SECOND;
+        boolean header = !file.isFile() || file.length() == 0;
+
+        try {
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Could not create " + file.getParentFile());
+            }
+
+            try (Writer writer = new FileWriter(file, true)) {
+                if (header) {
+                    writer.write("time,seconds,columns,blocks,texels,bytes");
+
+                    for (Timer timer : this.timers) {
+                        writer.write("," + timer.name + "_p50_us," + timer.name + "_p99_us");
+                    }
+
+                    writer.write("\n");
+                }
+
+                writer.write(System.currentTimeMillis() + "," + String.format("%.1f", seconds) + ","
+                        + this.loggedColumns + "," + this.loggedProbes + "," + this.loggedTexels + ","
+                        + this.loggedTexels * 4);
+
+                for (Timer timer : this.timers) {
+                    writer.write(String.format(",%.0f,%.0f", timer.p50, timer.p99));
+                }
+
+                writer.write("\n");
+            }
+        } catch (IOException e) {
+            /* Don't retry every few seconds */
+            LOGGER.warn("Could not write mini-map stats to " + file, e);
+            this.logSeconds = 0;
+        }
+
+        this.logStart = now;
+        this.loggedColumns = this.loggedProbes = this.loggedTexels = 0;
+    }
+
+    /**
+     * Keeps the most recent durations of something, to tell its typical and worst cost.
+     */
+    public static class Timer {
+        private static final int SAMPLES = 256;
+
+        private final String name;
+        private final long[] samples = new long[SAMPLES];
+        private final long[] sorted = new long[SAMPLES];
+        private int count;
+
+        /* Microseconds, as of the last summarize() */
+        private double p50, p99;
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        public void record(long nanos) {
+            this.samples[this.count++ % SAMPLES] = nanos;
+
+            /* Stay within the ring without overflowing */
+            if (this.count == 2 * SAMPLES) {
+                this.count = SAMPLES;
+            }
+        }
+
+        private void summarize() {
+            int n = Math.min(this.count, SAMPLES);
+
+            if (n == 0) {
+                this.p50 = this.p99 = 0D;
+                return;
+            }
+
+            System.arraycopy(this.samples, 0, this.sorted, 0, n);
+            Arrays.sort(this.sorted, 0, n);
+
+            this.p50 = this.sorted[(n - 1) / 2] / 1000D;
+            this.p99 = this.sorted[(int) Math.ceil(n * 0.99D) - 1] / 1000D;
+        }
+    }
+}
@@ -1,20 +1,104 @@
 package dev.jacobruby.minimapmod.map;
 
-import net.minecraft.block.Block;
 import net.minecraft.block.material.MapColor;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.util.BlockPos;
+import net.minecraft.util.MathHelper;
+import net.minecraft.world.ChunkCoordIntPair;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.storage.MapData;
 
+import java.io.File;
+import java.util.Arrays;
+
 /***
  * Class for handling chunk scanning and color calculation.
  */
 public class MiniMapData extends MapData {
+    /* Scans run on a single thread in asynchronous mode, so jobs never overlap. Tasks are handed over through the
+     * monitor of the lock, an executor's queue allocates whenever its lock is contended */
+    private static final Object SCAN_LOCK = new Object();
+    /* The task the scan thread runs next, guarded by the lock. Each map has at most one job pending, a map submitting
+     * while another map's task waits here waits for the scan thread to take it */
+    private static Runnable nextScan;
+    /* Started by the first asynchronous scan, guarded by the lock */
+    private static Thread scanThread;
+
+    private final MapScanner scanner = new MapScanner();
+
+    private final ScanJob syncJob = new ScanJob();
+    private final WorldChunkSource worldSource = new WorldChunkSource();
+
+    private final ScanJob asyncJob = new ScanJob();
+    private final SnapshotChunkSource snapshotSource = new SnapshotChunkSource();
+    /* Chunk snapshots are cached by chunk coordinates wrapped into a square as wide as the window, a power of two */
+    private int snapshotCacheSize;
+    private ChunkSnapshot[] snapshots = new ChunkSnapshot[0];
+    /* Snapshots of changed chunks are refilled rather than replaced, to reuse their arrays */
+    private boolean[] snapshotStale = new boolean[0];
+    private World snapshotWorld;
+
+    /* Submitted for every asynchronous job, so submitting doesn't allocate */
+    private final Runnable scanTask = this::runScan;
+
+    /* Used to find the viewer's ground and cave heights without allocating positions */
+    private final BlockPos.MutableBlockPos viewerPos = new BlockPos.MutableBlockPos();
+
+    /* Pixels along each side of the map, and the one the next update switches to */
+    private int resolution = 128;
+    private int requestedResolution = 128;
+
+    /* Only touched by the scan thread, finished frames are copied out of it */
+    private byte[] scanColors = new byte[16384];
+    /* The buffer the next asynchronous job fills, swapped with 'colors' when the job finishes */
+    private byte[] spareColors = new byte[16384];
+
+    /* Texture colors written by the scan in direct mode, same roles as the color buffers above */
+    private MapFrame frame, spareFrame, scanFrame;
+
+    private boolean async, direct;
+    private boolean scannedAsync, scannedDirect;
+    private ScanJob pendingJob;
+
+    /* Columns changed by the world since the last job, queued by cache index */
+    private boolean[] columnDirty = new boolean[MapScanner.cacheSize(128)];
+    private int[] dirtyQueue = new int[MapScanner.cacheSize(128)];
+    private int dirtyCount;
+
+    /* Chunks changed by the world since the last job */
+    private final long[] invalidChunks = new long[4096];
+    private int invalidChunkCount;
+    private boolean invalidChunksOverflow;
+
+    private int surfaceCacheChunks = 1024;
+    private int caveCacheChunks = 256;
+    private long scanBudget = 500_000L;
+
+    /* Where colors are remembered, and the store in it. Null when nothing is remembered */
+    private File tileDirectory;
+    private TileStore tiles;
+
+    /* Where scans are reported, and the source that counts their block reads. Null when nothing is counted */
+    private MapStats stats;
+    private CountingChunkSource countingSource;
+
+    /* Records every scan, null when nothing is recorded */
+    private MapRecorder recorder;
+
+    /* The pyramid level to show, 'scale' follows it as frames of the level come in */
+    private int zoom;
+
+    /* The sample window of the last job, -1 scale before the first */
+    private int jobScale = -1;
+    private int jobOriginX, jobOriginZ;
+
     public MiniMapData() {
         super("minimap");
+
+        this.syncJob.dirty = new int[MapScanner.cacheSize(128)];
+        this.asyncJob.dirty = new int[MapScanner.cacheSize(128)];
     }
 
     @Override
@@ -30,204 +114,668 @@ public class MiniMapData extends MapData {
         return false;
     }
 
+    /**
+     * Sets whether the map is scanned on a background thread. In asynchronous mode, {@code colors} is replaced with a
+     * complete frame whenever a scan finishes, and {@code xCenter} and {@code zCenter} follow the frame rather than the
+     * viewer.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Sets the number of pixels along each side of the map. The map switches to it on the next
+     * {@link #update(World, EntityPlayer)}, which replaces {@code colors} with a blank array of the new size and rescans
+     * everything.
+     *
+     * @param resolution a power of two.
+     */
+    public void setResolution(int resolution) {
+        this.requestedResolution = resolution;
+    }
+
+    /**
+     * @return the number of pixels along each side of {@code colors}.
+     */
+    public int getResolution() {
+        return this.resolution;
+    }
+
+    /**
+     * Sets the number of blocks along each side of a pixel. With a tile store every block column around the viewer is
+     * scanned either way, zoomed out maps are downsampled from the 1:1 map by a {@link MapPyramid}, so zooming doesn't
+     * rescan anything. Without one the pyramid would only know the middle of the map, so one column per pixel is
+     * scanned instead, and zooming rescans. {@code scale} follows once the colors of the new zoom are in
+     * {@code colors}.
+     *
+     * @param blocksPerPixel a power of two, up to 16.
+     */
+    public void setBlocksPerPixel(int blocksPerPixel) {
+        this.zoom = Integer.numberOfTrailingZeros(blocksPerPixel);
+    }
+
+    /**
+     * Sets the most chunks the surface scan keeps results of, to skip rescanning them when they come back into view.
+     */
+    public void setSurfaceCacheChunks(int chunks) {
+        this.surfaceCacheChunks = chunks;
+    }
+
+    /**
+     * Sets the most chunks the cave scan keeps air and liquid bitmaps of, so it can rescan them without reading blocks.
+     */
+    public void setCaveCacheChunks(int chunks) {
+        this.caveCacheChunks = chunks;
+    }
+
+    /**
+     * Sets the most time a scan may spend scanning columns, columns it doesn't reach are scanned by the next one.
+     *
+     * @param micros the budget in microseconds, or 0 for no limit.
+     */
+    public void setScanBudget(int micros) {
+        this.scanBudget = micros * 1000L;
+    }
+
+    /**
+     * Sets where the scans report the columns they scanned, the blocks they read and how long they took.
+     *
+     * @param stats the stats to report to, or null to count nothing.
+     */
+    public void setStats(MapStats stats) {
+        if (stats != this.stats) {
+            this.stats = stats;
+            this.countingSource = stats != null ? new CountingChunkSource(stats) : null;
+        }
+    }
+
+    /**
+     * Sets where every scan and the chunks it reads are recorded, null to record nothing.
+     */
+    public void setRecorder(MapRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Sets whether the scan also writes texture colors to a {@link MapFrame}, so the renderer doesn't have to convert
+     * {@code colors}.
+     */
+    public void setDirectColors(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * Sets the directory the map remembers explored colors in, so they are shown again wherever no chunk is loaded,
+     * also after a restart, and zoomed out levels are loaded from as they move into view.
+     *
+     * @param directory the directory of the world and dimension, or null to stop remembering, which writes out
+     *                  everything remembered so far.
+     */
+    public void setTileDirectory(File directory) {
+        if (this.pendingJob != null) {
+            this.finishJob();
+        }
+
+        if (this.tiles != null) {
+            this.tiles.close();
+            this.tiles = null;
+        }
+
+        this.tileDirectory = directory;
+    }
+
+    /**
+     * @return the store explored colors are remembered in, null if there is none or the map wasn't updated yet.
+     */
+    TileStore getTileStore() {
+        return this.tiles;
+    }
+
+    /**
+     * Prepares the map to be kept while its world isn't loaded. Finishes the pending scan, stops remembering colors and
+     * drops the chunk snapshots, which are of no use once the world is gone. Everything else is kept, so the map shows
+     * the same as before when it's {@link #attach(World) attached} again.
+     */
+    public void detach() {
+        this.setTileDirectory(null);
+
+        this.snapshotCacheSize = 0;
+        this.snapshots = new ChunkSnapshot[0];
+        this.snapshotStale = new boolean[0];
+        this.snapshotWorld = null;
+    }
+
+    /**
+     * Continues a {@link #detach() detached} map in a new instance of its world, keeping its colors and scan results.
+     * Chunks the client loads are rescanned as they arrive, so only what changed while the map was away costs a scan.
+     */
+    public void attach(World worldIn) {
+        this.scanner.rebind(worldIn);
+
+        if (this.frame != null) {
+            /* Whatever the renderer shows now came from another map */
+            this.frame.markAllDirty();
+        }
+    }
+
+    /**
+     * @return the approximate number of bytes the map holds on to, excluding chunk snapshots.
+     */
+    public long getMemoryBytes() {
+        int pixels = this.resolution * this.resolution;
+        int columns = MapScanner.cacheSize(this.resolution);
+
+        /* Three color buffers, three frames in direct mode, and the dirty queues of this map and its two jobs */
+        long bytes = pixels * 3L + columns * 13L;
+
+        if (this.frame != null) {
+            bytes += pixels * 12L;
+        }
+
+        return bytes + this.scanner.memoryBytes();
+    }
+
+    /**
+     * @return the texture colors of the map, or null if the map isn't in direct mode.
+     */
+    public MapFrame getFrame() {
+        return this.direct && this.scannedDirect ? this.frame : null;
+    }
+
     /**
      * Scans the blocks within {@code l + j1} meters of the player. This method updates this class's xCenter and zCenter
      * variables to the {@code viewer}'s position. When this method returns control, {@code colors} will be updated to
      * the latest available world information including block updates in the previous tick.
+     * <p>
+     * In asynchronous mode this method only starts a scan of snapshots of the needed chunks, and swaps in the result of
+     * the previous scan once it is done. The map then lags behind by about a tick.
      *
      * @param worldIn the world to render to the mini-map data.
      * @param viewer the player viewing the map.
      */
     public void update(World worldIn, EntityPlayer viewer) {
-        {
-            /* Right now 'i' is useless unless you want a lower-resolution map */
-            int i = 1 << this.scale;
-            int j = this.xCenter = (int) viewer.posX;
-            int k = this.zCenter = (int) viewer.posZ;
-            int l = 64;
-            int i1 = 64;
-
-            int j1 = 128 / i;
-
-            /* Used for the nether and the end */
-            boolean cave = worldIn.provider.getHasNoSky();
-            /* Make 'cave' true for cave view in the overworld */
-
-            BlockPos playerPos = new BlockPos(viewer.posX, viewer.posY, viewer.posZ);
-            int ground = (int) viewer.posY;
-            int g1 = 0;
-
-            /* This reduces "flashing" when jumping around. If you're within 3 blocks of the ground, it just starts
-             * from the ground */
-            if (cave) {
-                IBlockState iBlockState;
-                Chunk chunk = worldIn.getChunkFromBlockCoords(playerPos);
-
-                BlockPos.MutableBlockPos groundPos = new BlockPos.MutableBlockPos();
-
-                do {
-                    iBlockState = chunk.getBlockState(groundPos.set(playerPos.getX(), ground, playerPos.getZ()));
-                } while (iBlockState.getBlock().getMapColor(iBlockState) == MapColor.airColor && --ground > 0 && ++g1 < 3);
+        if (!this.prepareScan()) {
+            return;
+        }
+
+        int j = (int) viewer.posX;
+        int k = (int) viewer.posZ;
+
+        /* Used for the nether and the end */
+        boolean cave = worldIn.provider.getHasNoSky();
+        /* Make 'cave' true for cave view in the overworld */
+
+        int playerX = MathHelper.floor_double(viewer.posX);
+        int playerZ = MathHelper.floor_double(viewer.posZ);
+        int ground = (int) viewer.posY;
+        int g1 = 0;
+
+        /* This reduces "flashing" when jumping around. If you're within 3 blocks of the ground, it just starts
+         * from the ground */
+        if (cave) {
+            IBlockState iBlockState;
+            Chunk chunk = worldIn.getChunkFromChunkCoords(playerX >> 4, playerZ >> 4);
+
+            do {
+                iBlockState = chunk.getBlockState(this.viewerPos.set(playerX, ground, playerZ));
+            } while (iBlockState.getBlock().getMapColor(iBlockState) == MapColor.airColor && --ground > 0 && ++g1 < 3);
+        }
+
+        int caveHeight = (int) viewer.posY;
+
+        /* Gets the first non-air-colored block above your head. That point is used as the highest y level that
+         * will be scanned in search of an air block */
+        if (cave) {
+            IBlockState iBlockState;
+            Chunk chunk = worldIn.getChunkFromChunkCoords(playerX >> 4, playerZ >> 4);
+
+            do {
+                iBlockState = chunk.getBlockState(this.viewerPos.set(playerX, caveHeight, playerZ));
+            } while (iBlockState.getBlock().getMapColor(iBlockState) == MapColor.airColor && ++caveHeight < 255);
+
+            /* Subtracts one if it's odd, this makes it less psychedelic when running around as
+             * there's fewer changes. */
+            caveHeight &= -2;
+        }
+
+        this.scan(worldIn, null, j, k, cave, ground, caveHeight);
+    }
+
+    /**
+     * Scans like {@link #update(World, EntityPlayer)}, but from recorded chunks and viewer positions rather than a world.
+     * Used by {@code MapReplay}, which {@link #finishScan() finishes} every asynchronous scan before the next.
+     *
+     * @param source the recorded chunks, must not change while they are scanned.
+     */
+    void replay(MapChunkSource source, int x, int z, boolean cave, int ground, int caveHeight) {
+        if (this.prepareScan()) {
+            this.scan(null, source, x, z, cave, ground, caveHeight);
+        }
+    }
+
+    /**
+     * Waits for the pending asynchronous scan, and swaps in its frame.
+     */
+    void finishScan() {
+        if (this.pendingJob != null) {
+            this.finishJob();
+        }
+    }
+
+    /**
+     * Finishes the last scan, and applies new settings between scans.
+     *
+     * @return whether to scan, false while an asynchronous scan is still running.
+     */
+    private boolean prepareScan() {
+        if (this.pendingJob != null) {
+            if (this.async && !this.pendingJob.done) {
+                /* Keep showing the last finished frame */
+                return false;
+            }
+
+            this.finishJob();
+        }
+
+        if (this.requestedResolution != this.resolution) {
+            this.resize(this.requestedResolution);
+        }
+
+        if (this.tileDirectory != null && this.tiles == null) {
+            this.tiles = new TileStore(this.tileDirectory);
+        }
+
+        return true;
+    }
+
+    /**
+     * Starts or runs the scan of the window around the given block.
+     *
+     * @param source the chunks to scan, null to scan {@code worldIn}.
+     */
+    private void scan(World worldIn, MapChunkSource source, int j, int k, boolean cave, int ground, int caveHeight) {
+        int half = this.resolution / 2;
+
+        if (this.async != this.scannedAsync || this.direct != this.scannedDirect) {
+            /* The scanner writes to different buffers now, it has to start over */
+            this.scanner.invalidate();
+            this.scannedAsync = this.async;
+            this.scannedDirect = this.direct;
+        }
+
+        if (this.direct && this.frame == null) {
+            this.frame = new MapFrame(this.resolution);
+            this.spareFrame = new MapFrame(this.resolution);
+            this.scanFrame = new MapFrame(this.resolution);
+        }
+
+        ScanJob job = this.async ? this.asyncJob : this.syncJob;
+
+        job.world = worldIn;
+        job.resolution = this.resolution;
+
+        if (this.tiles != null) {
+            /* Every block column is scanned, the zoom is applied afterwards */
+            job.scale = 0;
+            job.zoom = this.zoom;
+        } else {
+            /* Nothing remembers the columns around the 1:1 window, so sample one column per pixel to keep it all live */
+            job.scale = this.zoom;
+            job.zoom = 0;
+        }
+
+        /* Blocks per pixel */
+        int i = 1 << job.scale;
+        job.xCenter = j;
+        job.zCenter = k;
+        job.originX = this.jobOriginX = j / i - half;
+        job.originZ = this.jobOriginZ = k / i - half - 1;
+        job.cave = cave;
+        job.ground = ground;
+        job.caveHeight = caveHeight;
+        this.jobScale = job.scale;
+
+        for (int n = 0; n < this.dirtyCount; ++n) {
+            this.columnDirty[this.dirtyQueue[n]] = false;
+        }
+
+        System.arraycopy(this.dirtyQueue, 0, job.dirty, 0, this.dirtyCount);
+        job.dirtyCount = this.dirtyCount;
+        this.dirtyCount = 0;
+
+        System.arraycopy(this.invalidChunks, 0, job.invalidChunks, 0, this.invalidChunkCount);
+        job.invalidChunkCount = this.invalidChunkCount;
+        job.invalidChunksOverflow = this.invalidChunksOverflow;
+        this.invalidChunkCount = 0;
+        this.invalidChunksOverflow = false;
+
+        job.surfaceCacheChunks = this.surfaceCacheChunks;
+        job.caveCacheChunks = this.caveCacheChunks;
+        job.scanBudget = this.scanBudget;
+        job.tiles = this.tiles;
+
+        if (this.recorder != null && source == null) {
+            this.recorder.record(worldIn, job);
+        }
+
+        if (this.async) {
+            if (source != null) {
+                job.source = source;
+            } else {
+                this.snapshotWindow(worldIn, job);
+            }
+
+            if (this.countingSource != null) {
+                job.source = this.countingSource.setSource(job.source);
+            }
+
+            job.output = this.spareColors;
+            job.outputFrame = this.direct ? this.spareFrame : null;
+            job.done = false;
+            job.failure = null;
+
+            this.pendingJob = job;
+            submitScan(this.scanTask);
+        } else {
+            job.source = source != null ? source : this.worldSource.setWorld(worldIn);
+
+            if (this.countingSource != null) {
+                job.source = this.countingSource.setSource(job.source);
+            }
+
+            long start = System.nanoTime();
+            this.scanner.scan(job, this.colors, this.direct ? this.frame : null);
+            job.scanNanos = System.nanoTime() - start;
+
+            if (this.stats != null) {
+                this.stats.addScan(job.scannedColumns, job.scanNanos);
+            }
+
+            this.xCenter = j;
+            this.zCenter = k;
+            this.scale = (byte) (job.scale + job.zoom);
+        }
+    }
+
+    /**
+     * Reallocates every buffer for a new resolution. Must not be called while a job is pending.
+     */
+    private void resize(int resolution) {
+        this.resolution = resolution;
+
+        this.colors = new byte[resolution * resolution];
+        this.scanColors = new byte[resolution * resolution];
+        this.spareColors = new byte[resolution * resolution];
+        this.frame = this.spareFrame = this.scanFrame = null;
+
+        this.columnDirty = new boolean[MapScanner.cacheSize(resolution)];
+        this.dirtyQueue = new int[MapScanner.cacheSize(resolution)];
+        this.dirtyCount = 0;
+        this.syncJob.dirty = new int[MapScanner.cacheSize(resolution)];
+        this.asyncJob.dirty = new int[MapScanner.cacheSize(resolution)];
+
+        /* The new cache starts out empty anyway, but the frames must be rescanned from scratch */
+        this.scanner.invalidate();
+    }
+
+    private static void submitScan(Runnable task) {
+        boolean interrupted = false;
+
+        synchronized (SCAN_LOCK) {
+            if (scanThread == null) {
+                scanThread = new Thread(MiniMapData::scanLoop, "Mini-Map Scanner");
+                scanThread.setDaemon(true);
+                scanThread.start();
+            }
+
+            /* Only when several maps scan asynchronously, a map's own last task was taken before its job finished */
+            while (nextScan != null) {
+                try {
+                    SCAN_LOCK.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            nextScan = task;
+            SCAN_LOCK.notifyAll();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the submitted scans, on the scan thread.
+     */
+    private static void scanLoop() {
+        while (true) {
+            Runnable task;
+
+            synchronized (SCAN_LOCK) {
+                while (nextScan == null) {
+                    try {
+                        SCAN_LOCK.wait();
+                    } catch (InterruptedException ignored) {
+                        /* Nothing interrupts the scan thread on purpose, keep serving scans */
+                    }
+                }
+
+                task = nextScan;
+                nextScan = null;
+                /* Maps waiting to submit may go ahead */
+                SCAN_LOCK.notifyAll();
             }
 
-            int caveHeight = (int) viewer.posY;
+            task.run();
+        }
+    }
 
-            /* Gets the first non-air-colored block above your head. That point is used as the highest y level that
-             * will be scanned in search of an air block */
-            if (cave) {
-                IBlockState iBlockState;
-                Chunk chunk = worldIn.getChunkFromBlockCoords(playerPos);
+    /**
+     * Scans the pending asynchronous job, on the scan thread.
+     */
+    private void runScan() {
+        ScanJob job = this.pendingJob;
 
-                BlockPos.MutableBlockPos caveHeightPos = new BlockPos.MutableBlockPos();
+        try {
+            long start = System.nanoTime();
+            this.scanner.scan(job, this.scanColors, job.outputFrame != null ? this.scanFrame : null);
+            job.scanNanos = System.nanoTime() - start;
 
-                do {
-                    iBlockState = chunk.getBlockState(caveHeightPos.set(playerPos.getX(), caveHeight, playerPos.getZ()));
-                } while (iBlockState.getBlock().getMapColor(iBlockState) == MapColor.airColor && ++caveHeight < 255);
+            System.arraycopy(this.scanColors, 0, job.output, 0, job.output.length);
 
-                /* Subtracts one if it's odd, this makes it less psychedelic when running around as
-                 * there's fewer changes. */
-                caveHeight &= -2;
+            if (job.outputFrame != null) {
+                job.outputFrame.copyAll(this.scanFrame);
+            }
+        } catch (Throwable t) {
+            job.failure = t;
+        } finally {
+            synchronized (job) {
+                job.done = true;
+                job.notifyAll();
             }
+        }
+    }
+
+    /**
+     * Waits for the pending asynchronous job and swaps in its colors. Interrupts don't cut the wait short, they are
+     * kept for the caller.
+     */
+    private void finishJob() {
+        ScanJob job = this.pendingJob;
+        boolean interrupted = false;
+
+        /* The scan writes the spare buffers until it's done, they can't be handed to another job before */
+        synchronized (job) {
+            while (!job.done) {
+                try {
+                    job.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        /* Not before, the scan thread looks the job up when it starts */
+        this.pendingJob = null;
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (job.failure != null) {
+            throw new IllegalStateException("Mini-map scan failed", job.failure);
+        }
+
+        if (this.stats != null) {
+            this.stats.addScan(job.scannedColumns, job.scanNanos);
+        }
+
+        this.spareColors = this.colors;
+        this.colors = job.output;
+
+        if (job.outputFrame != null) {
+            /* Changes the renderer hasn't picked up yet must carry over */
+            job.outputFrame.mergeDirty(this.frame);
+            this.spareFrame = this.frame;
+            this.frame = job.outputFrame;
+        }
+
+        this.xCenter = job.xCenter;
+        this.zCenter = job.zCenter;
+        this.scale = (byte) (job.scale + job.zoom);
+    }
+
+    /**
+     * Gives the {@code job} snapshots of every chunk its window touches. Snapshots are reused until their chunk changes.
+     * Chunks that aren't loaded get the shared empty snapshot, so the memory of a large window is bounded by the loaded
+     * chunks in it.
+     */
+    private void snapshotWindow(World worldIn, ScanJob job) {
+        int i = 1 << job.scale;
+        int chunkX0 = job.originX * i >> 4;
+        int chunkZ0 = job.originZ * i >> 4;
+        int chunkX1 = (job.originX + job.resolution - 1) * i >> 4;
+        int chunkZ1 = (job.originZ + job.resolution) * i >> 4;
+
+        /* Wider than the window, so chunks that scroll out don't share a slot with chunks that scroll in */
+        int size = Integer.highestOneBit(Math.max(chunkX1 - chunkX0, chunkZ1 - chunkZ0) + 2) << 1;
+
+        if (size != this.snapshotCacheSize) {
+            this.snapshotCacheSize = size;
+            this.snapshots = new ChunkSnapshot[size * size];
+            this.snapshotStale = new boolean[size * size];
+        }
 
-            for (int k1 = l - j1 + 1; k1 < l + j1; ++k1) {
-                /* d0 is used as a placeholder for the previous scanned block's y level */
-                double d0 = 0.0D;
+        if (worldIn != this.snapshotWorld) {
+            Arrays.fill(this.snapshotStale, true);
+            this.snapshotWorld = worldIn;
+        }
 
-                for (int l1 = i1 - j1 - 1; l1 < i1 + j1; ++l1) {
-                    if (k1 >= 0 && l1 >= -1 && k1 < 128 && l1 < 128) {
+        this.snapshotSource.reset(chunkX0, chunkZ0, chunkX1 - chunkX0 + 1, chunkZ1 - chunkZ0 + 1);
 
-                        /* Calculate world coordinates */
-                        int k2 = (j / i + k1 - 64) * i;
-                        int l2 = (k / i + l1 - 64) * i;
+        for (int chunkX = chunkX0; chunkX <= chunkX1; ++chunkX) {
+            for (int chunkZ = chunkZ0; chunkZ <= chunkZ1; ++chunkZ) {
+                int slot = this.snapshotSlot(chunkX, chunkZ);
+                ChunkSnapshot snapshot = this.snapshots[slot];
 
-                        MapColor mapColor;
-                        Chunk chunk = worldIn.getChunkFromBlockCoords(new BlockPos(k2, 0, l2));
+                if (snapshot == null || this.snapshotStale[slot] || snapshot.xPosition != chunkX
+                        || snapshot.zPosition != chunkZ) {
+                    Chunk chunk = worldIn.getChunkFromChunkCoords(chunkX, chunkZ);
 
-                        if (!chunk.isEmpty()) {
-                            int i3 = k2 & 15;
-                            int j3 = l2 & 15;
-                            int k3 = 0;
-                            double d1 = 0.0D;
+                    if (chunk.isEmpty()) {
+                        /* The slot keeps its old snapshot to refill once the chunk loads */
+                        this.snapshotSource.set(chunkX, chunkZ, ChunkSnapshot.EMPTY);
+                        continue;
+                    }
 
-                            BlockPos.MutableBlockPos blockpos$mutableblockpos = new BlockPos.MutableBlockPos();
+                    if (snapshot == null) {
+                        snapshot = this.snapshots[slot] = new ChunkSnapshot();
+                    }
 
-                            int k4 = cave ? ground : chunk.getHeightValue(i3, j3) + 1;
+                    /* No job is running, so nothing reads the old contents anymore */
+                    snapshot.copy(chunk, chunkX, chunkZ);
+                    this.snapshotStale[slot] = false;
+                }
 
-                            k4 = Math.max(0, k4);
+                this.snapshotSource.set(chunkX, chunkZ, snapshot);
+            }
+        }
 
-                            int k5 = k4;
-                            IBlockState iblockstate;
+        job.source = this.snapshotSource;
+    }
 
-                            label541:
-                            {
-                                iblockstate = chunk.getBlockState(blockpos$mutableblockpos.set(i3, k4, j3));
+    private int snapshotSlot(int chunkX, int chunkZ) {
+        int mask = this.snapshotCacheSize - 1;
+        return (chunkX & mask) + (chunkZ & mask) * this.snapshotCacheSize;
+    }
+
+    private void invalidateChunk(long key) {
+        /* Block updates tend to come in bursts within one chunk */
+        if (this.invalidChunkCount > 0 && this.invalidChunks[this.invalidChunkCount - 1] == key) {
+            return;
+        }
 
-                                if (cave && iblockstate.getBlock().getMapColor(iblockstate) != MapColor.airColor) {
-                                    /* If the block is solid, start scanning upward for air */
-                                    do {
-                                        k4++;
-
-                                        if (k4 >= caveHeight) {
-                                            /* If the scan reached the cave height calculated earlier, then use the
-                                             * current block, and make it dark to make solid walls more distinct */
-                                            d0 += 2;
-                                            /* This makes it so the current block is "2 blocks lower than the previous block" */
-                                            break label541;
-                                        }
-
-                                        iblockstate = chunk.getBlockState(blockpos$mutableblockpos.set(i3, k4, j3));
-                                    } while (iblockstate.getBlock().getMapColor(iblockstate) != MapColor.airColor);
-                                }
-
-                                boolean voidLoop = false;
-
-                                /* Now scan downward to find the first non-air-colored block */
-                                while (iblockstate.getBlock().getMapColor(iblockstate) == MapColor.airColor) {
-                                    --k4;
-
-                                    if (k4 < 0) {
-                                        /* If we hit the void, start back up from the cave height and go down */
-                                        voidLoop = true;
-                                        k4 = caveHeight;
-                                    }
-
-                                    if (voidLoop && k4 <= k5) {
-                                        /* If we reach where we started, there are no visible blocks, display air */
-                                        break;
-                                    }
-
-                                    iblockstate = chunk.getBlockState(blockpos$mutableblockpos.set(i3, k4, j3));
-                                }
-
-                                if (k4 > 0 && iblockstate.getBlock().getMaterial().isLiquid()) {
-                                    /* If we hit a liquid, calculate the distance between the surface of the liquid,
-                                    * and the solid block below it, depth. */
-
-                                    int l4 = k4 - 1;
-
-                                    while (true) {
-                                        Block block = chunk.getBlock(i3, l4--, j3);
-                                        ++k3;
-
-                                        if (l4 <= 0 || !block.getMaterial().isLiquid()) {
-                                            break label541;
-                                        }
-                                    }
-                                }
-                            }
-
-                            d1 += (double) k4 / (double) (i * i);
-                            mapColor = iblockstate.getBlock().getMapColor(iblockstate);
-
-                            double d2;
-                            int i5;
-
-                            if (mapColor == MapColor.waterColor) {
-                                /* If it's water, calculate shading based on depth, calculated earlier */
-                                k3 = k3 / (i * i);
-                                d2 = (double) k3 * 0.1D + (double) (k2 + l2 & 1) * 0.2D;
-                                i5 = 1;
-
-                                if (d2 < 0.5D) {
-                                    i5 = 2;
-                                }
-
-                                if (d2 > 0.9D) {
-                                    i5 = 0;
-                                }
-
-                                if (d2 > 1.5D) {
-                                    i5 = 3;
-                                }
-                            } else {
-                                /* Otherwise, calculate shading based on height difference from the previous block */
-                                d2 = (d1 - d0) * 4.0D / (double) (i + 4) + ((double) (k2 + l2 & 1) - 0.5D) * 0.4D;
-                                i5 = 1;
-
-                                if (d2 > 0.6D) {
-                                    i5 = 2;
-                                }
-
-                                if (d2 < -0.6D) {
-                                    i5 = 0;
-                                }
-
-                                if (d2 < -1.0D) {
-                                    i5 = 3;
-                                }
-                            }
-
-                            /* Update d0 to this block's y level */
-                            d0 = d1;
-
-                            if (l1 >= 0) {
-                                /* Calculate color, and store */
-                                byte b1 = (byte) (mapColor.colorIndex * 4 + i5);
-                                this.colors[k1 + l1 * 128] = b1;
-                            }
-                        }
+        if (this.invalidChunkCount == this.invalidChunks.length) {
+            this.invalidChunksOverflow = true;
+        } else {
+            this.invalidChunks[this.invalidChunkCount++] = key;
+        }
+    }
+
+    /**
+     * Marks the cached columns within the given block rectangle to be rescanned on the next {@link #update(World,
+     * EntityPlayer)}. Columns outside of the map are ignored, they are scanned when they scroll into view. Shading of the
+     * column after a changed one is recomputed along with it.
+     *
+     * @param x1 the lowest block x coordinate, inclusive.
+     * @param z1 the lowest block z coordinate, inclusive.
+     * @param x2 the highest block x coordinate, inclusive.
+     * @param z2 the highest block z coordinate, inclusive.
+     */
+    public void markRangeDirty(int x1, int z1, int x2, int z2) {
+        /* Snapshots are dropped even outside of the map, they might scroll into view later */
+        for (int chunkX = x1 >> 4; chunkX <= x2 >> 4; ++chunkX) {
+            for (int chunkZ = z1 >> 4; chunkZ <= z2 >> 4; ++chunkZ) {
+                if (this.snapshotCacheSize > 0) {
+                    int slot = this.snapshotSlot(chunkX, chunkZ);
+                    ChunkSnapshot snapshot = this.snapshots[slot];
+
+                    if (snapshot != null && snapshot.xPosition == chunkX && snapshot.zPosition == chunkZ) {
+                        this.snapshotStale[slot] = true;
                     }
                 }
+
+                this.invalidateChunk(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+
+                if (this.recorder != null) {
+                    this.recorder.chunkChanged(chunkX, chunkZ);
+                }
+            }
+        }
+
+        if (this.jobScale < 0) {
+            /* Nothing is cached yet, the first update scans everything */
+            return;
+        }
+
+        int i = 1 << this.jobScale;
+
+        /* Only blocks on a sample coordinate are shown on the map */
+        int sx1 = Math.max(-Math.floorDiv(-x1, i), this.jobOriginX);
+        int sz1 = Math.max(-Math.floorDiv(-z1, i), this.jobOriginZ);
+        int sx2 = Math.min(Math.floorDiv(x2, i), this.jobOriginX + this.resolution - 1);
+        int sz2 = Math.min(Math.floorDiv(z2, i), this.jobOriginZ + this.resolution);
+
+        for (int sx = sx1; sx <= sx2; ++sx) {
+            for (int sz = sz1; sz <= sz2; ++sz) {
+                int index = MapScanner.cacheIndex(sx, sz, this.resolution);
+
+                if (!this.columnDirty[index]) {
+                    this.columnDirty[index] = true;
+                    this.dirtyQueue[this.dirtyCount++] = index;
+                }
             }
         }
     }
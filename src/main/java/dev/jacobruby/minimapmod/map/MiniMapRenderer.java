@@ -1,19 +1,23 @@
 package dev.jacobruby.minimapmod.map;
-import net.minecraft.block.material.MapColor;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.FontRenderer;
 import net.minecraft.client.gui.ScaledResolution;
+import net.minecraft.client.renderer.GLAllocation;
 import net.minecraft.client.renderer.GlStateManager;
+import net.minecraft.client.renderer.OpenGlHelper;
 import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.client.renderer.WorldRenderer;
 import net.minecraft.client.renderer.texture.DynamicTexture;
 import net.minecraft.client.renderer.texture.TextureManager;
 import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
+import net.minecraft.client.shader.Framebuffer;
 import net.minecraft.util.ResourceLocation;
 import net.minecraft.world.storage.MapData;
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
 
-import java.util.Arrays;
+import java.nio.IntBuffer;
+import java.util.List;
 
 /**
  * Mini-map renderer class. Used to render the mini-map texture, overlay, and compass to the screen.
@@ -21,99 +25,254 @@ import java.util.Arrays;
 public class MiniMapRenderer {
     private static final Minecraft MC = Minecraft.getMinecraft();
 
+    /* Compass letters from north, clockwise */
+    private static final String[] COMPASS = {"N", "E", "S", "W"};
+
+    /* Icons of the markers, one square per kind from left to right, and their on-screen size in scaled pixels */
+    private static final ResourceLocation MARKER_ATLAS = new ResourceLocation("minimap", "markers.png");
+    private static final double MARKER_SIZE = 8D;
+
+    /* Scaled pixels around the map in a composite, room for the compass letters */
+    private static final int COMPOSITE_MARGIN = 10;
+
+    /* How far the composite may be moved and turned before it's drawn again, in scaled pixels and degrees */
+    private static final double MAX_COMPOSITE_SHIFT = 2D;
+    private static final double MAX_COMPOSITE_TURN = 3D;
+
     private final TextureManager textureManager;
 
-    private final DynamicTexture texture;
-    private final ResourceLocation resourceLocation;
-    private final int[] textureData;
+    /* Only used to allocate and manage the OpenGL texture, uploads come from textureFrame. Replaced when the
+     * resolution changes */
+    private DynamicTexture texture;
+    private ResourceLocation resourceLocation;
+
+    /* The texture's contents, with the texels changed since the last upload. Its size is the map resolution */
+    private MapFrame textureFrame = new MapFrame(128);
+
+    /* Staging buffer for texture uploads, only the changed rows are copied in */
+    private IntBuffer uploadBuffer;
 
     private final ResourceLocation playerResourceLocation;
 
+    /* The block position the center of the texture shows */
     public int xCenter, zCenter;
 
+    /* The texture is addressed by world position wrapped around its edges, these offset the map into it */
+    private double textureU, textureV;
+
+    /* Blocks per texel */
+    private int blocksPerPixel = 1;
+
+    /* On-screen diameter of the mini-map, in scaled pixels */
+    private int size = 128;
+
+    /* Display lists of the disc, the player icon and the border, in that order, and the size they were compiled for */
+    private int displayLists;
+    private int geometrySize = -1;
+
+    /* Frames each composite is shown for, 0 to draw the mini-map directly every frame */
+    private int compositeFrames;
+    private Framebuffer composite;
+    private int compositeAge;
+
+    /* The player position and rotation the composite was drawn at, and its scaled pixels per block */
+    private double compositeX, compositeZ, compositeRotation;
+    private double compositePixelsPerBlock;
+
+    /* The markers to show, the most to draw per frame and the progress into the tick to place entities at */
+    private MapMarkers markers;
+    private int markerCap;
+    private float partialTicks;
+
+    /* Query results, offsets from the viewer and icons of the markers to draw */
+    private double[] markerOffsets = new double[0];
+    private int[] markerKinds = new int[0];
+
+    /* Where uploads are reported, null to count nothing */
+    private MapStats stats;
+
+    /* Half the width of each compass letter */
+    private final int[] compassOffsets = new int[COMPASS.length];
+
     public MiniMapRenderer() {
         this.textureManager = MC.getTextureManager();
+        this.playerResourceLocation = new ResourceLocation("minimap", "player_icon.png");
+    }
 
-        this.texture = new DynamicTexture(128, 128);
-        this.resourceLocation = this.textureManager.getDynamicTextureLocation("minimap", this.texture);
-        this.textureData = this.texture.getTextureData();
+    /**
+     * Sets the on-screen diameter of the mini-map, in scaled pixels. The map shows the same area at any size.
+     */
+    public void setSize(int size) {
+        this.size = size;
+    }
 
-        Arrays.fill(this.textureData, 0);
+    /**
+     * Sets how many frames the mini-map is drawn once for, through an offscreen composite. 0 draws it directly every
+     * frame.
+     */
+    public void setCompositeFrames(int compositeFrames) {
+        this.compositeFrames = compositeFrames;
+    }
 
-        this.playerResourceLocation = new ResourceLocation("minimap", "player_icon.png");
+    /**
+     * Sets the markers to show around the player icon for the next frame.
+     *
+     * @param cap the most markers to draw, the nearest ones are drawn.
+     * @param partialTicks the progress into the current tick, entity markers are placed between their last two
+     *                     positions.
+     */
+    public void setMarkers(MapMarkers markers, int cap, float partialTicks) {
+        this.markers = markers;
+        this.markerCap = cap;
+        this.partialTicks = partialTicks;
+
+        if (this.markerKinds.length != cap) {
+            this.markerOffsets = new double[cap * 2];
+            this.markerKinds = new int[cap];
+        }
+    }
+
+    /**
+     * Sets where texture uploads are reported, null to count nothing.
+     */
+    public void setStats(MapStats stats) {
+        this.stats = stats;
     }
 
     /**
      * Used to update the texture data to the given {@code mapData}. This method should only be called immediately after
      * {@code mapData} has been updated.
+     * <p>
+     * Map pixels are stored at their sample coordinates wrapped around the texture, so when the map scrolls, pixels that
+     * stay in view keep their texel and only the strips that scrolled in change. Changed texels are remembered for
+     * {@link #updateTexture()}. If the map writes texture colors itself, only its changed pixels are copied, otherwise
+     * every color byte is looked up in the {@link MapPalette}. The texture follows the map's resolution, and is
+     * replaced on the next {@link #updateTexture()} when it changes.
      *
      * @param mapData the map to set the texture to.
      */
     public void postTextureData(MapData mapData) {
-        for (int i = 0; i < 16384; ++i) {
-            int j = mapData.colors[i] & 255;
+        int resolution = mapData instanceof MiniMapData ? ((MiniMapData) mapData).getResolution() : 128;
+        int scale = 1 << mapData.scale;
+        int x0 = mapData.xCenter / scale - resolution / 2;
+        int z0 = mapData.zCenter / scale - resolution / 2;
 
-            if (j / 4 == 0) {
-                this.textureData[i] = (i + i / 128 & 1) * 8 + 0xFF << 24;
-            } else {
-                this.textureData[i] = MapColor.mapColorArray[j / 4].func_151643_b(j & 3);
-            }
+        if (this.textureFrame.size != resolution) {
+            this.textureFrame = new MapFrame(resolution);
+        }
+
+        MapFrame frame = mapData instanceof MiniMapData ? ((MiniMapData) mapData).getFrame() : null;
+
+        if (frame != null) {
+            this.textureFrame.copyDirty(frame);
+        } else {
+            this.textureFrame.setColors(mapData.colors, x0, z0);
         }
 
-        this.xCenter = mapData.xCenter;
-        this.zCenter = mapData.zCenter;
+        /* Pixels show the column at their corner, so the center is on a sample coordinate */
+        this.xCenter = (x0 + resolution / 2) * scale;
+        this.zCenter = (z0 + resolution / 2) * scale;
+        this.blocksPerPixel = scale;
+        this.textureU = (x0 & resolution - 1) / (double) resolution;
+        this.textureV = (z0 & resolution - 1) / (double) resolution;
     }
 
     /**
-     * Updates the OpenGL texture. Must be called with an OpenGL context.
+     * Updates the OpenGL texture. Must be called with an OpenGL context. Only the texels changed since the last call are
+     * uploaded, consecutive rows with the same changed span are uploaded together. Nothing is uploaded if the texture
+     * data didn't change.
      */
     public void updateTexture() {
-        this.texture.updateDynamicTexture();
+        MapFrame frame = this.textureFrame;
+        int resolution = frame.size;
+
+        if (this.texture == null || this.uploadBuffer.capacity() != resolution * resolution) {
+            this.allocateTexture(resolution);
+        }
+
+        if (!frame.isDirty()) {
+            return;
+        }
+
+        GlStateManager.bindTexture(this.texture.getGlTextureId());
+        GL11.glPixelStorei(GL11.GL_UNPACK_ROW_LENGTH, resolution);
+
+        int y = 0;
+        int texels = 0;
+
+        while (y < resolution) {
+            int minX = frame.dirtyMinX[y];
+            int maxX = frame.dirtyMaxX[y];
+
+            if (maxX < minX) {
+                ++y;
+                continue;
+            }
+
+            int y2 = y + 1;
+
+            while (y2 < resolution && frame.dirtyMinX[y2] == minX && frame.dirtyMaxX[y2] == maxX) {
+                ++y2;
+            }
+
+            int width = maxX - minX + 1;
+
+            for (int row = y; row < y2; ++row) {
+                this.uploadBuffer.position(row * resolution + minX);
+                this.uploadBuffer.put(frame.pixels, row * resolution + minX, width);
+            }
+
+            this.uploadBuffer.position(y * resolution + minX);
+            GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, minX, y, width, y2 - y, GL12.GL_BGRA,
+                    GL12.GL_UNSIGNED_INT_8_8_8_8_REV, this.uploadBuffer);
+            texels += width * (y2 - y);
+
+            y = y2;
+        }
+
+        GL11.glPixelStorei(GL11.GL_UNPACK_ROW_LENGTH, 0);
+        this.uploadBuffer.clear();
+        frame.clearDirty();
+
+        if (this.stats != null) {
+            this.stats.addUpload(texels);
+        }
     }
 
     /**
-     * Renders the texture, overlay, and compass to the screen using the current OpenGL context.
-     *
-     * @param uOffset the amount of offset to apply to the texture's u coordinate. Used to create a smooth movement
-     *                effect. The measurement is in meters, or blocks.
-     * @param vOffset the amount of offset to apply to the texture's v coordinate. Used to create a smooth movement
-     *                effect. The measurement is in meters, or blocks.
-     * @param rotation the rotation of the texture and direction of the compass. The context is reverse and backward
-     *                 from the standard player yaw. Meaning {@code rotation == -player.rotationYaw + 180}. North is
-     *                 calculated as {@code rotation - 90}.
+     * Replaces the texture with one of the given size. Its contents are uploaded by the next texture update.
      */
-    public void render(double uOffset, double vOffset, double rotation) {
-        ScaledResolution sr = new ScaledResolution(MC);
-        int scaledHeight = sr.getScaledHeight();
-        int scaledWidth = sr.getScaledWidth();
-
-        int resolution = 128;
+    private void allocateTexture(int resolution) {
+        if (this.texture != null) {
+            this.textureManager.deleteTexture(this.resourceLocation);
+        }
 
-        /* Mini-map size */
-        int size = 128;
-        double scale = size / (double) resolution;
-        int top = 10;
-        int left = scaledWidth - size - 10;
+        this.texture = new DynamicTexture(resolution, resolution);
+        this.resourceLocation = this.textureManager.getDynamicTextureLocation("minimap", this.texture);
+        this.uploadBuffer = GLAllocation.createDirectIntBuffer(resolution * resolution);
 
-        double radius = size / 2D;
-        double xCenter = left + radius;
-        double yCenter = top + radius;
+        this.textureFrame.markAllDirty();
+    }
 
-        GL11.glPushMatrix();
-        GL11.glTranslated(xCenter, yCenter, 0);
+    /**
+     * Compiles the display lists of the disc, player icon and border for the current size, replacing the old ones, and
+     * measures the compass letters. Nothing in them changes with the map's position, rotation or resolution, those are
+     * applied through the matrices when the lists are called.
+     */
+    private void buildGeometry() {
+        if (this.displayLists == 0) {
+            this.displayLists = GLAllocation.generateDisplayLists(3);
+        }
 
         Tessellator tessellator = Tessellator.getInstance();
         WorldRenderer worldRenderer = tessellator.getWorldRenderer();
 
-        { /* Render mini-map texture */
-            GL11.glPushMatrix();
-            GL11.glRotated(rotation, 0, 0, 1);
-
-            this.textureManager.bindTexture(this.resourceLocation);
+        double scale = this.size / 128D;
+        double radius = this.size / 2D;
 
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_CLAMP);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_CLAMP);
+        GL11.glNewList(this.displayLists, GL11.GL_COMPILE);
 
+        { /* Mini-map disc, its texture coordinates cover the texture once */
             worldRenderer.begin(GL11.GL_POLYGON, DefaultVertexFormats.POSITION_TEX);
 
             for (double angle = 360.0D; angle >= 0.0D; angle -= 2.0D) {
@@ -122,27 +281,22 @@ public class MiniMapRenderer {
                 double cos = Math.cos(radians);
                 double sin = Math.sin(radians);
 
-                double x = cos * radius;
-                double y = sin * radius;
-                double u = cos * 0.5 + 0.5 + (uOffset / resolution);
-                double v = sin * 0.5 + 0.5 + (vOffset / resolution);
-
-                worldRenderer.pos(x, y, 0.0D).tex(u, v).endVertex();
+                worldRenderer.pos(cos * radius, sin * radius, 0.0D).tex(cos * 0.5 + 0.5, sin * 0.5 + 0.5).endVertex();
             }
 
             tessellator.draw();
-            GL11.glPopMatrix();
         }
 
-        { /* Render player icon */
+        GL11.glEndList();
+        GL11.glNewList(this.displayLists + 1, GL11.GL_COMPILE);
+
+        { /* Player icon */
             double height = 15 * scale / 2;
             double width = 11 * scale / 2;
 
             double x = -(width / 2D);
             double y = -(height / 2D);
 
-            this.textureManager.bindTexture(this.playerResourceLocation);
-
             worldRenderer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION_TEX);
             worldRenderer.pos(x, (y + height), 0.0D).tex(0, 1).endVertex();
             worldRenderer.pos((x + width), (y + height), 0.0D).tex(1, 1).endVertex();
@@ -151,11 +305,10 @@ public class MiniMapRenderer {
             tessellator.draw();
         }
 
-        { /* Render border */
-            GlStateManager.disableTexture2D();
-
-            GlStateManager.color(0.3f, 0.3f, 0.3f, 1f);
+        GL11.glEndList();
+        GL11.glNewList(this.displayLists + 2, GL11.GL_COMPILE);
 
+        { /* Border */
             worldRenderer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION);
 
             double borderWidth = 2.5D;
@@ -189,34 +342,280 @@ public class MiniMapRenderer {
             }
 
             tessellator.draw();
+        }
 
-            GlStateManager.enableTexture2D();
+        GL11.glEndList();
+
+        FontRenderer font = MC.fontRendererObj;
+
+        for (int n = 0; n < COMPASS.length; ++n) {
+            this.compassOffsets[n] = font.getStringWidth(COMPASS[n]) / 2;
         }
 
-        { /* Render compass */
-            FontRenderer font = MC.fontRendererObj;
+        this.geometrySize = this.size;
+    }
 
-            char[] compass = new char[]{'N', 'E', 'S', 'W'};
+    /**
+     * Renders the texture, overlay, and compass to the screen using the current OpenGL context. The geometry is compiled
+     * once and only compiled again when the size changes.
+     * <p>
+     * If composites are enabled, everything is drawn into an offscreen buffer once every few frames instead, and the
+     * frames in between draw that buffer as a single quad, moved and turned by how far the player moved and turned since.
+     * Until the next composite, the player icon, border and compass move and turn along with the map by that small
+     * amount, so a composite is drawn early once it gets noticeable.
+     *
+     * @param sr the scaled resolution of the overlay being rendered.
+     * @param uOffset the amount of offset to apply to the texture's u coordinate. Used to create a smooth movement
+     *                effect. The measurement is in meters, or blocks.
+     * @param vOffset the amount of offset to apply to the texture's v coordinate. Used to create a smooth movement
+     *                effect. The measurement is in meters, or blocks.
+     * @param rotation the rotation of the texture and direction of the compass. The context is reverse and backward
+     *                 from the standard player yaw. Meaning {@code rotation == -player.rotationYaw + 180}. North is
+     *                 calculated as {@code rotation - 90}.
+     */
+    public void render(ScaledResolution sr, double uOffset, double vOffset, double rotation) {
+        int scaledWidth = sr.getScaledWidth();
 
-            double angle = rotation - 90D;
+        if (this.geometrySize != this.size) {
+            this.buildGeometry();
+        }
 
-            double letterRadius = radius + 1D;
+        /* Mini-map size */
+        int size = this.size;
+        int top = 10;
+        int left = scaledWidth - size - 10;
 
-            for (char letter : compass) {
-                double radians = Math.toRadians(angle);
+        double radius = size / 2D;
+        double xCenter = left + radius;
+        double yCenter = top + radius;
 
-                double cos = Math.cos(radians);
-                double sin = Math.sin(radians);
+        if (this.compositeFrames == 0 || !OpenGlHelper.isFramebufferEnabled()) {
+            if (this.composite != null) {
+                this.composite.deleteFramebuffer();
+                this.composite = null;
+            }
+
+            this.draw(xCenter, yCenter, uOffset, vOffset, rotation);
+            return;
+        }
+
+        /* Scaled pixels around the map the compass letters reach into */
+        int side = size + 2 * COMPOSITE_MARGIN;
+        int pixels = side * sr.getScaleFactor();
+        boolean redraw = ++this.compositeAge >= this.compositeFrames;
+
+        if (this.composite == null) {
+            this.composite = new Framebuffer(pixels, pixels, false);
+            this.composite.setFramebufferColor(0F, 0F, 0F, 0F);
+            this.composite.setFramebufferFilter(GL11.GL_LINEAR);
+            redraw = true;
+        } else if (this.composite.framebufferWidth != pixels) {
+            this.composite.createBindFramebuffer(pixels, pixels);
+            this.composite.setFramebufferFilter(GL11.GL_LINEAR);
+            redraw = true;
+        }
+
+        /* Scaled pixels per block */
+        double pixelsPerBlock = size / (double) (this.textureFrame.size * this.blocksPerPixel);
+
+        /* Where the map content drawn into the composite now is, relative to the center, and how much it turned */
+        double dx = (this.compositeX - this.xCenter - uOffset) * pixelsPerBlock;
+        double dz = (this.compositeZ - this.zCenter - vOffset) * pixelsPerBlock;
+        double radians = Math.toRadians(rotation);
+        double shiftX = dx * Math.cos(radians) - dz * Math.sin(radians);
+        double shiftY = dx * Math.sin(radians) + dz * Math.cos(radians);
+        double turn = rotation - this.compositeRotation;
+
+        if (pixelsPerBlock != this.compositePixelsPerBlock || Math.abs(shiftX) > MAX_COMPOSITE_SHIFT
+                || Math.abs(shiftY) > MAX_COMPOSITE_SHIFT || Math.abs(turn) > MAX_COMPOSITE_TURN) {
+            redraw = true;
+        }
+
+        if (redraw) {
+            this.drawComposite(side, uOffset, vOffset, rotation);
+            this.compositeX = this.xCenter + uOffset;
+            this.compositeZ = this.zCenter + vOffset;
+            this.compositeRotation = rotation;
+            this.compositePixelsPerBlock = pixelsPerBlock;
+            this.compositeAge = 0;
+
+            shiftX = shiftY = turn = 0D;
+        }
+
+        { /* Render the composite */
+            GL11.glPushMatrix();
+            GL11.glTranslated(xCenter + shiftX, yCenter + shiftY, 0);
+            GL11.glRotated(turn, 0, 0, 1);
+
+            GlStateManager.color(1F, 1F, 1F, 1F);
+            this.composite.bindFramebufferTexture();
+
+            double half = side / 2D;
+            Tessellator tessellator = Tessellator.getInstance();
+            WorldRenderer worldRenderer = tessellator.getWorldRenderer();
+
+            /* Framebuffer textures start at the bottom */
+            worldRenderer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION_TEX);
+            worldRenderer.pos(-half, half, 0D).tex(0D, 0D).endVertex();
+            worldRenderer.pos(half, half, 0D).tex(1D, 0D).endVertex();
+            worldRenderer.pos(half, -half, 0D).tex(1D, 1D).endVertex();
+            worldRenderer.pos(-half, -half, 0D).tex(0D, 1D).endVertex();
+            tessellator.draw();
+
+            GL11.glPopMatrix();
+        }
+    }
+
+    /**
+     * Renders lines of text under the mini-map, right aligned with it.
+     *
+     * @param sr the scaled resolution of the overlay being rendered.
+     */
+    public void renderLines(ScaledResolution sr, List<String> lines) {
+        FontRenderer font = MC.fontRendererObj;
+        int right = sr.getScaledWidth() - 10;
+        /* Below the compass */
+        int y = 10 + this.size + 8;
+
+        for (String line : lines) {
+            font.drawString(line, right - font.getStringWidth(line), y, 0xFFFFFFFF, true);
+            y += font.FONT_HEIGHT + 1;
+        }
+    }
+
+    /**
+     * Draws the mini-map into the composite, centered in a square of {@code side} scaled pixels, then switches back to
+     * the main framebuffer.
+     */
+    private void drawComposite(int side, double uOffset, double vOffset, double rotation) {
+        this.composite.framebufferClear();
+        this.composite.bindFramebuffer(true);
+
+        GlStateManager.matrixMode(GL11.GL_PROJECTION);
+        GlStateManager.pushMatrix();
+        GlStateManager.loadIdentity();
+        GlStateManager.ortho(0D, side, side, 0D, 1000D, 3000D);
+        GlStateManager.matrixMode(GL11.GL_MODELVIEW);
+        GlStateManager.pushMatrix();
+        GlStateManager.loadIdentity();
+        GlStateManager.translate(0F, 0F, -2000F);
+
+        this.draw(side / 2D, side / 2D, uOffset, vOffset, rotation);
+
+        GlStateManager.matrixMode(GL11.GL_PROJECTION);
+        GlStateManager.popMatrix();
+        GlStateManager.matrixMode(GL11.GL_MODELVIEW);
+        GlStateManager.popMatrix();
+
+        MC.getFramebuffer().bindFramebuffer(true);
+    }
+
+    /**
+     * Draws the texture, overlay, and compass around the given center.
+     *
+     * @see #render(ScaledResolution, double, double, double)
+     */
+    private void draw(double xCenter, double yCenter, double uOffset, double vOffset, double rotation) {
+        /* Blocks across the map */
+        int blocks = this.textureFrame.size * this.blocksPerPixel;
+
+        double radius = this.size / 2D;
+
+        GL11.glPushMatrix();
+        GL11.glTranslated(xCenter, yCenter, 0);
+
+        { /* Render mini-map texture */
+            GL11.glPushMatrix();
+            GL11.glRotated(rotation, 0, 0, 1);
+
+            this.textureManager.bindTexture(this.resourceLocation);
+
+            /* The map wraps around the texture edges */
+            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_REPEAT);
+            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_REPEAT);
+
+            /* Scroll the texture under the disc */
+            GL11.glMatrixMode(GL11.GL_TEXTURE);
+            GL11.glPushMatrix();
+            GL11.glTranslated((uOffset / blocks) + this.textureU, (vOffset / blocks) + this.textureV, 0D);
+
+            GL11.glCallList(this.displayLists);
+
+            GL11.glPopMatrix();
+            GL11.glMatrixMode(GL11.GL_MODELVIEW);
+            GL11.glPopMatrix();
+        }
+
+        if (this.markers != null && this.markerCap > 0) { /* Render markers */
+            double pixelsPerBlock = this.size / (double) blocks;
+            int count = this.markers.query(this.xCenter + uOffset, this.zCenter + vOffset, blocks / 2D,
+                    this.partialTicks, this.markerCap, this.markerOffsets, this.markerKinds);
+
+            if (count > 0) {
+                /* Markers turn with the map, their icons stay upright */
+                double radians = Math.toRadians(rotation);
+                double cos = Math.cos(radians) * pixelsPerBlock;
+                double sin = Math.sin(radians) * pixelsPerBlock;
+                double half = MARKER_SIZE / 2D;
+
+                Tessellator tessellator = Tessellator.getInstance();
+                WorldRenderer worldRenderer = tessellator.getWorldRenderer();
+
+                this.textureManager.bindTexture(MARKER_ATLAS);
+
+                /* Every marker in one draw */
+                worldRenderer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION_TEX);
+
+                for (int n = 0; n < count; ++n) {
+                    double offsetX = this.markerOffsets[n * 2];
+                    double offsetZ = this.markerOffsets[n * 2 + 1];
+                    double x = offsetX * cos - offsetZ * sin;
+                    double y = offsetX * sin + offsetZ * cos;
+                    double u1 = this.markerKinds[n] / (double) MapMarkers.KINDS;
+                    double u2 = (this.markerKinds[n] + 1) / (double) MapMarkers.KINDS;
+
+                    worldRenderer.pos(x - half, y + half, 0D).tex(u1, 1D).endVertex();
+                    worldRenderer.pos(x + half, y + half, 0D).tex(u2, 1D).endVertex();
+                    worldRenderer.pos(x + half, y - half, 0D).tex(u2, 0D).endVertex();
+                    worldRenderer.pos(x - half, y - half, 0D).tex(u1, 0D).endVertex();
+                }
+
+                tessellator.draw();
+            }
+        }
+
+        { /* Render player icon */
+            this.textureManager.bindTexture(this.playerResourceLocation);
+            GL11.glCallList(this.displayLists + 1);
+        }
+
+        { /* Render border */
+            GlStateManager.disableTexture2D();
+
+            GlStateManager.color(0.3f, 0.3f, 0.3f, 1f);
+            GL11.glCallList(this.displayLists + 2);
+
+            GlStateManager.enableTexture2D();
+        }
+
+        { /* Render compass */
+            FontRenderer font = MC.fontRendererObj;
+
+            double radians = Math.toRadians(rotation - 90D);
+            double letterRadius = radius + 1D;
 
-                double x = cos * letterRadius;
-                double y = sin * letterRadius;
+            /* Each letter is a quarter turn further, which swaps and negates the coordinates */
+            double x = Math.cos(radians) * letterRadius;
+            double y = Math.sin(radians) * letterRadius;
 
-                String letterString = String.valueOf(letter);
-                int color = letter == 'N' ? 0xFFFF7777 : 0xFFFFFFFF;
+            for (int n = 0; n < COMPASS.length; ++n) {
+                int color = n == 0 ? 0xFFFF7777 : 0xFFFFFFFF;
 
-                font.drawString(String.valueOf(letter), (float) (x - (font.getStringWidth(letterString) / 2)), (float) y - 4, color, true);
+                font.drawString(COMPASS[n], (float) (x - this.compassOffsets[n]), (float) y - 4, color, true);
 
-                angle += 90D;
+                double turned = -y;
+                y = x;
+                x = turned;
             }
         }
 
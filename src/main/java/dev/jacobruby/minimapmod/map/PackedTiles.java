@@ -0,0 +1,323 @@
+package dev.jacobruby.minimapmod.map;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copies of world map tiles packed off the heap, so tiles that fell out of the {@link WorldMapTiles} textures, or were
+ * shown the last time the world map was open, don't have to be read from the region files again. A zoomed out tile
+ * reads from 16 region files, far more than the {@link TileStore} keeps mapped.
+ * <p>
+ * Every tile is packed with a palette of the colors it holds, with as few bits per sample as the palette needs. A tile
+ * of one color, such as open ocean or unexplored area, is just that color, the one run it holds. Tiles of several
+ * colors aren't run-length encoded: two colors already pack into two kilobytes, and runs would need slots of any size.
+ * Packed samples are kept in direct buffers of one megabyte, in slots of the same size per bit width, and slots of
+ * dropped tiles are reused. Tiles are cached by count, so the heap holds the same no matter how much was explored. Must
+ * only be used on the client thread.
+ */
+class PackedTiles {
+    private static final int TILE_SIZE = WorldMapTiles.TILE_SIZE;
+    private static final int TILE_SHIFT = Integer.numberOfTrailingZeros(TILE_SIZE);
+    private static final int SAMPLES = TILE_SIZE * TILE_SIZE;
+
+    /* Tiles are cached by their tile coordinates, with the level in the low bits of x */
+    private static final int LEVEL_BITS = 3;
+
+    private static final int SLAB_SIZE = 1 << 20;
+
+    /* Bits per sample of each slot size. Tiles of 8 bits are stored as they are, without a palette */
+    private static final int[] BITS = {1, 2, 4, 8};
+
+    private final ChunkCache<Tile> cache;
+    private int capacity;
+
+    private final Slots[] slots = new Slots[BITS.length];
+
+    /* Counts the times the slots were freed together, tiles dropped by the cache still hold slots of earlier times */
+    private int generation;
+
+    /* Palette index of each color in the tile being packed, valid where the stamp is the current one */
+    private final byte[] paletteIndex = new byte[256];
+    private final int[] paletteStamp = new int[256];
+    private int stamp;
+
+    private final byte[] palette = new byte[256];
+
+    /* Texture colors of the palette, for samples on even and on odd checkerboard squares */
+    private final int[][] paletteArgb = new int[2][1 << BITS[BITS.length - 2]];
+
+    PackedTiles() {
+        this.cache = new ChunkCache<>(Tile::new, this::free);
+
+        for (int i = 0; i < BITS.length; ++i) {
+            this.slots[i] = new Slots(slotSize(BITS[i]));
+        }
+    }
+
+    private static int slotSize(int bits) {
+        return (bits < 8 ? 1 << bits : 0) + SAMPLES * bits / 8;
+    }
+
+    /**
+     * Sets the most tiles kept. Changing it drops every tile.
+     */
+    void setCapacity(int capacity) {
+        if (capacity != this.capacity) {
+            this.capacity = capacity;
+            this.cache.setCapacity(capacity);
+            this.clear();
+        }
+    }
+
+    /**
+     * Drops every tile, and frees the buffers.
+     */
+    void clear() {
+        this.cache.clear();
+
+        for (Slots slots : this.slots) {
+            slots.clear();
+        }
+
+        ++this.generation;
+    }
+
+    /**
+     * Drops every level of a level 0 tile that was written, so they are packed again when next shown.
+     */
+    void invalidate(int tileX, int tileZ) {
+        for (int level = 0; level < MapPyramid.LEVELS; ++level) {
+            int x = tileX >> level;
+            int z = tileZ >> level;
+            Tile tile = this.cache.peek(x << LEVEL_BITS | level, z);
+
+            if (tile != null) {
+                tile.packed = false;
+            }
+        }
+    }
+
+    /**
+     * Decodes a tile into texture colors, reading and packing it first if it isn't packed.
+     *
+     * @param samples holds the samples of the tile while it's read, row by row.
+     * @param pixels receives the texture colors of the tile, row by row.
+     */
+    void decode(TileStore.Reader reader, int level, int tileX, int tileZ, byte[] samples, int[] pixels) {
+        Tile tile = this.cache.getChunk(tileX << LEVEL_BITS | level, tileZ);
+
+        if (!tile.packed) {
+            reader.invalidate();
+
+            int x0 = tileX * TILE_SIZE;
+            int z0 = tileZ * TILE_SIZE;
+
+            for (int z = 0; z < TILE_SIZE; ++z) {
+                for (int x = 0; x < TILE_SIZE; ++x) {
+                    samples[x + z * TILE_SIZE] = reader.get(level, x0 + x, z0 + z);
+                }
+            }
+
+            this.pack(tile, samples);
+        }
+
+        this.unpack(tile, pixels);
+    }
+
+    private void pack(Tile tile, byte[] samples) {
+        this.free(tile);
+
+        int stamp = ++this.stamp;
+        int colors = 0;
+
+        for (int i = 0; i < SAMPLES; ++i) {
+            int color = samples[i] & 255;
+
+            if (this.paletteStamp[color] != stamp) {
+                this.paletteStamp[color] = stamp;
+                this.paletteIndex[color] = (byte) colors;
+                this.palette[colors++] = (byte) color;
+            }
+        }
+
+        tile.packed = true;
+
+        if (colors == 1) {
+            tile.color = samples[0];
+            return;
+        }
+
+        int size = 0;
+
+        while (1 << BITS[size] < colors) {
+            ++size;
+        }
+
+        int bits = BITS[size];
+        Slots slots = this.slots[size];
+        tile.size = size;
+        tile.slot = slots.take();
+        tile.generation = this.generation;
+
+        ByteBuffer slab = slots.slab(tile.slot);
+        int offset = slots.offset(tile.slot);
+
+        if (bits == 8) {
+            for (int i = 0; i < SAMPLES; ++i) {
+                slab.put(offset + i, samples[i]);
+            }
+
+            return;
+        }
+
+        for (int i = 0; i < 1 << bits; ++i) {
+            slab.put(offset + i, i < colors ? this.palette[i] : 0);
+        }
+
+        offset += 1 << bits;
+
+        /* Samples are packed from the low bits of each byte up */
+        int perByte = 8 / bits;
+
+        for (int i = 0; i < SAMPLES; i += perByte) {
+            int packed = 0;
+
+            for (int n = 0; n < perByte; ++n) {
+                packed |= (this.paletteIndex[samples[i + n] & 255] & 255) << n * bits;
+            }
+
+            slab.put(offset + i / perByte, (byte) packed);
+        }
+    }
+
+    private void unpack(Tile tile, int[] pixels) {
+        if (tile.slot < 0) {
+            int even = MapPalette.argb(tile.color, 0, 0);
+            int odd = MapPalette.argb(tile.color, 1, 0);
+
+            for (int z = 0; z < TILE_SIZE; ++z) {
+                for (int x = 0; x < TILE_SIZE; ++x) {
+                    pixels[x + z * TILE_SIZE] = (x + z & 1) == 0 ? even : odd;
+                }
+            }
+
+            return;
+        }
+
+        int bits = BITS[tile.size];
+        Slots slots = this.slots[tile.size];
+        ByteBuffer slab = slots.slab(tile.slot);
+        int offset = slots.offset(tile.slot);
+
+        if (bits == 8) {
+            for (int i = 0; i < SAMPLES; ++i) {
+                pixels[i] = MapPalette.argb(slab.get(offset + i), i, i >> TILE_SHIFT);
+            }
+
+            return;
+        }
+
+        for (int i = 0; i < 1 << bits; ++i) {
+            byte color = slab.get(offset + i);
+            this.paletteArgb[0][i] = MapPalette.argb(color, 0, 0);
+            this.paletteArgb[1][i] = MapPalette.argb(color, 1, 0);
+        }
+
+        offset += 1 << bits;
+
+        int perByte = 8 / bits;
+        int mask = (1 << bits) - 1;
+
+        for (int i = 0; i < SAMPLES; i += perByte) {
+            int packed = slab.get(offset + i / perByte);
+
+            for (int n = 0; n < perByte; ++n) {
+                int sample = i + n;
+                /* The checkerboard square of the sample, its row is the index shifted by the tile size */
+                int[] argb = this.paletteArgb[sample + (sample >> TILE_SHIFT) & 1];
+                pixels[sample] = argb[packed >> n * bits & mask];
+            }
+        }
+    }
+
+    /**
+     * Frees the slot of a tile that is dropped or packed again.
+     */
+    private void free(Tile tile) {
+        if (tile.slot >= 0 && tile.generation == this.generation) {
+            this.slots[tile.size].release(tile.slot);
+        }
+
+        tile.slot = -1;
+
+        tile.packed = false;
+    }
+
+    private static class Tile {
+        private boolean packed;
+
+        /* The slot of the packed samples and the index of its size, or -1 if the tile is the one color */
+        private int size;
+        private int slot = -1;
+        private int generation;
+        private byte color;
+    }
+
+    /**
+     * Slots of one size, in direct buffers created as they are needed.
+     */
+    private static class Slots {
+        private final int size;
+        private final int perSlab;
+
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+
+        /* Released slots, taken again before new ones */
+        private int[] released = new int[64];
+        private int releasedCount;
+        private int used;
+
+        private Slots(int size) {
+            this.size = size;
+            this.perSlab = SLAB_SIZE / size;
+        }
+
+        private int take() {
+            if (this.releasedCount > 0) {
+                return this.released[--this.releasedCount];
+            }
+
+            int slot = this.used++;
+
+            if (slot / this.perSlab == this.slabs.size()) {
+                this.slabs.add(ByteBuffer.allocateDirect(this.perSlab * this.size));
+            }
+
+            return slot;
+        }
+
+        private void release(int slot) {
+            if (this.releasedCount == this.released.length) {
+                this.released = Arrays.copyOf(this.released, this.releasedCount * 2);
+            }
+
+            this.released[this.releasedCount++] = slot;
+        }
+
+        private ByteBuffer slab(int slot) {
+            return this.slabs.get(slot / this.perSlab);
+        }
+
+        private int offset(int slot) {
+            return slot % this.perSlab * this.size;
+        }
+
+        private void clear() {
+            this.slabs.clear();
+            this.releasedCount = 0;
+            this.used = 0;
+        }
+    }
+}
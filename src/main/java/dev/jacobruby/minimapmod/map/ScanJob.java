@@ -0,0 +1,58 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.world.World;
+
+/**
+ * Everything a {@link MapScanner} needs to bring its map up to date. Built on the client thread, jobs must not be
+ * modified while they are being scanned.
+ */
+class ScanJob {
+    /* Only used to tell worlds apart, the scanner never reads it */
+    World world;
+
+    /* Pixels along each side of the map, blocks per scanned column as a power of two, and the pyramid level shown */
+    int resolution;
+    int scale;
+    int zoom;
+    int xCenter, zCenter;
+
+    /* Sample coordinates of the map column k1 == 0 and row l1 == -1 */
+    int originX, originZ;
+
+    boolean cave;
+    int ground, caveHeight;
+
+    /* Cache indices of the columns changed by the world, sized for the resolution */
+    int[] dirty = new int[0];
+    int dirtyCount;
+
+    /* Chunks changed by the world since the last job, their cached surfaces are dropped. Everything is dropped when
+     * there were too many to list */
+    final long[] invalidChunks = new long[4096];
+    int invalidChunkCount;
+    boolean invalidChunksOverflow;
+
+    /* Nanoseconds the scan may spend on columns, 0 for no limit */
+    long scanBudget;
+
+    /* Most chunks the surface and cave caches may hold */
+    int surfaceCacheChunks;
+    int caveCacheChunks;
+
+    MapChunkSource source;
+
+    /* Remembers the colors of the world and dimension, null to remember nothing */
+    TileStore tiles;
+
+    /* Asynchronous jobs copy the finished colors into these buffers, the frame is null unless in direct mode */
+    byte[] output;
+    MapFrame outputFrame;
+
+    /* Set by the scan, the columns it scanned and the nanoseconds it took */
+    int scannedColumns;
+    long scanNanos;
+
+    /* Set by the scan thread when an asynchronous job is finished, waited on through the job's monitor */
+    volatile boolean done;
+    Throwable failure;
+}
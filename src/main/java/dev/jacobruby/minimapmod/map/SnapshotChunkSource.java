@@ -0,0 +1,45 @@
+package dev.jacobruby.minimapmod.map;
+
+/**
+ * Serves chunk snapshots for a rectangle of chunks. Chunks outside of the rectangle are empty. Snapshots are never
+ * modified while they are served, so any number of threads may read them.
+ */
+public class SnapshotChunkSource implements MapChunkSource {
+    private ChunkSnapshot[] chunks = new ChunkSnapshot[0];
+    private int chunkX0, chunkZ0, width, height;
+
+    /**
+     * Resizes the rectangle and clears it.
+     */
+    public void reset(int chunkX0, int chunkZ0, int width, int height) {
+        if (this.chunks.length < width * height) {
+            this.chunks = new ChunkSnapshot[width * height];
+        }
+
+        this.chunkX0 = chunkX0;
+        this.chunkZ0 = chunkZ0;
+        this.width = width;
+        this.height = height;
+    }
+
+    public void set(int chunkX, int chunkZ, ChunkSnapshot snapshot) {
+        this.chunks[(chunkX - this.chunkX0) + (chunkZ - this.chunkZ0) * this.width] = snapshot;
+    }
+
+    @Override
+    public MapChunk getChunk(int chunkX, int chunkZ) {
+        int x = chunkX - this.chunkX0;
+        int z = chunkZ - this.chunkZ0;
+
+        if (x < 0 || z < 0 || x >= this.width || z >= this.height) {
+            return ChunkSnapshot.EMPTY;
+        }
+
+        return this.chunks[x + z * this.width];
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+}
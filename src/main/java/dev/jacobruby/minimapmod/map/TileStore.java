@@ -0,0 +1,567 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.world.ChunkCoordIntPair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers map colors on disk, by sample coordinates. Colors are kept in region files of 512x512 samples, a small
+ * header followed by one color byte per sample, row by row, and 0 for samples that were never scanned. Region files are
+ * memory mapped.
+ * <p>
+ * Every region also holds the zoomed out levels of the {@link MapPyramid}, 256x256 samples for level 1 down to 32x32
+ * for level 4, each after the one before. They are downsampled from level 0 as it's written.
+ * <p>
+ * Colors are read by the scan, and recorded changes are written in batches by a background writer thread, so the scan
+ * never waits for a write. {@link #get(int, int)}, {@link #record(int, int, byte)} and {@link #flush()} must only be
+ * called by the thread that scans, other threads read through a {@link Reader} of their own.
+ */
+public class TileStore {
+    private static final Logger LOGGER = LogManager.getLogger("Mini-Map");
+
+    /* Writes of every store run on the writer thread, in order. The queue keeps its array once it has grown, so handing
+     * over a batch allocates nothing, unlike an executor's queue nodes */
+    private static final Object WRITE_LOCK = new Object();
+    private static final ArrayDeque<Runnable> WRITES = new ArrayDeque<>();
+    /* Started by the first write, guarded by the lock */
+    private static Thread writer;
+
+    private static final int REGION_SHIFT = 9;
+    private static final int REGION_MASK = (1 << REGION_SHIFT) - 1;
+
+    /* Level 0 samples along each side of a region */
+    static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+    /* "MMT2", followed by the region size, the number of levels and a reserved int */
+    private static final int MAGIC = 0x4D4D5432;
+    private static final int HEADER_SIZE = 16;
+
+    /* Where each level starts in a region file, and where the file ends */
+    private static final int[] LEVEL_OFFSETS = new int[MapPyramid.LEVELS + 1];
+
+    static {
+        LEVEL_OFFSETS[0] = HEADER_SIZE;
+
+        for (int level = 0; level < MapPyramid.LEVELS; ++level) {
+            LEVEL_OFFSETS[level + 1] = LEVEL_OFFSETS[level] + (1 << (REGION_SHIFT - level) * 2);
+        }
+    }
+
+    private static final int FILE_SIZE = LEVEL_OFFSETS[MapPyramid.LEVELS];
+
+    /* Mappings stay valid after they're dropped, so this only bounds the address space in use */
+    private static final int MAX_OPEN_REGIONS = 64;
+
+    /* Regions a reader keeps at hand, the window of the map spans up to four of each level */
+    private static final int READER_REGIONS = 4 * MapPyramid.LEVELS;
+
+    /* Level 0 samples along the side of a world map tile, as a shift */
+    private static final int TILE_SHIFT = Integer.numberOfTrailingZeros(WorldMapTiles.TILE_SIZE);
+
+    /* The most written tiles remembered for the packed tiles, beyond which they are all dropped */
+    private static final int MAX_WRITTEN_TILES = 4096;
+
+    /* Stand in for regions without a file, so they aren't looked up on disk again, and for files that can't be
+     * mapped, so they aren't tried again */
+    private static final ByteBuffer MISSING = ByteBuffer.allocate(0);
+    private static final ByteBuffer FAILED = ByteBuffer.allocate(0);
+
+    private final File directory;
+
+    /* Mapped regions by packed region coordinates, shared by the scan and writer threads */
+    private final Map<Long, ByteBuffer> regions = new LinkedHashMap<Long, ByteBuffer>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+            return this.size() > MAX_OPEN_REGIONS;
+        }
+    };
+
+    private final Reader scanReader = new Reader();
+
+    /* The region the writer wrote last */
+    private long writeKey;
+    private ByteBuffer writeRegion;
+
+    /* Changes recorded by the scan, and the ones being written. Swapped when the writer is idle */
+    private Batch recording = new Batch();
+    private Batch writing = new Batch();
+    private volatile boolean writerBusy;
+
+    /* Counts the batches written, so readers can tell when to read again */
+    private volatile int version;
+    /* Counts the region files created, so readers can tell when regions without a file may have one */
+    private volatile int created;
+
+    private final Runnable writeTask = this::writeBatch;
+
+    private final PackedTiles packedTiles = new PackedTiles();
+
+    /* Level 0 tiles of the batch being written, only used by the writer thread */
+    private final Set<Long> batchTiles = new HashSet<>();
+
+    /* Level 0 tiles written since the packed tiles last looked. Guarded by this store */
+    private final Set<Long> writtenTiles = new HashSet<>();
+    private boolean tooManyWritten;
+
+    /**
+     * @param directory the directory of the region files, created once something is written.
+     */
+    public TileStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the remembered color of the given sample, 0 if it was never scanned.
+     */
+    byte get(int sampleX, int sampleZ) {
+        return this.get(0, sampleX, sampleZ);
+    }
+
+    /**
+     * @param level the {@link MapPyramid} level, whose samples are {@code 1 << level} samples of level 0 wide.
+     * @return the remembered color of the given sample of the level, 0 if nothing below it was ever scanned.
+     */
+    byte get(int level, int sampleX, int sampleZ) {
+        return this.scanReader.get(level, sampleX, sampleZ);
+    }
+
+    /**
+     * @return the directory of the region files.
+     */
+    File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * @return the region coordinates of every region file, regions anything was recorded in.
+     */
+    List<ChunkCoordIntPair> listRegions() {
+        List<ChunkCoordIntPair> regions = new ArrayList<>();
+        String[] names = this.directory.list();
+
+        if (names == null) {
+            return regions;
+        }
+
+        for (String name : names) {
+            String[] parts = name.split("\\.");
+
+            if (parts.length == 4 && parts[0].equals("r") && parts[3].equals("map")) {
+                try {
+                    regions.add(new ChunkCoordIntPair(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+                } catch (NumberFormatException ignored) {
+                    /* Not a region file after all */
+                }
+            }
+        }
+
+        return regions;
+    }
+
+    /**
+     * Reads the level 0 samples of a region straight from its file, without mapping it, so reading many regions
+     * doesn't push the ones the scan uses out of the mapped regions. Safe to call from any thread. Colors written since
+     * the last {@link #flush()} aren't in the file yet.
+     *
+     * @param samples receives {@link #REGION_SIZE} rows of samples.
+     * @return whether the region has a file.
+     */
+    boolean readRegion(int regionX, int regionZ, byte[] samples) throws IOException {
+        File file = new File(this.directory, "r." + regionX + "." + regionZ + ".map");
+
+        if (!file.isFile()) {
+            return false;
+        }
+
+        try (RandomAccessFile access = new RandomAccessFile(file, "r")) {
+            if (access.length() != FILE_SIZE || access.readInt() != MAGIC) {
+                return false;
+            }
+
+            access.seek(HEADER_SIZE);
+            access.readFully(samples, 0, REGION_SIZE * REGION_SIZE);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return a new reader, for a thread other than the one that scans.
+     */
+    Reader newReader() {
+        return new Reader();
+    }
+
+    /**
+     * @return the packed copies of world map tiles, without the tiles written since they were last looked at. Must only
+     *         be called on the client thread.
+     */
+    PackedTiles getPackedTiles() {
+        synchronized (this) {
+            if (this.tooManyWritten) {
+                this.packedTiles.clear();
+            } else {
+                for (long key : this.writtenTiles) {
+                    this.packedTiles.invalidate((int) key, (int) (key >> 32));
+                }
+            }
+
+            this.writtenTiles.clear();
+            this.tooManyWritten = false;
+        }
+
+        return this.packedTiles;
+    }
+
+    /**
+     * @return a number that changes whenever recorded colors were written, and can be read differently.
+     */
+    int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Records a changed color, to be written by the next {@link #flush()}.
+     */
+    void record(int sampleX, int sampleZ, byte color) {
+        this.recording.add(sampleX, sampleZ, color);
+    }
+
+    /**
+     * Hands the recorded changes to the writer thread, unless it's still busy with the last ones. Then they are kept
+     * and handed over together with the next changes.
+     */
+    void flush() {
+        /* Regions may have been created since they were read */
+        this.scanReader.invalidate();
+
+        if (this.recording.count == 0 || this.writerBusy) {
+            return;
+        }
+
+        Batch batch = this.recording;
+        this.recording = this.writing;
+        this.writing = batch;
+
+        this.writerBusy = true;
+        submitWrite(this.writeTask);
+    }
+
+    /**
+     * Writes the remaining changes and flushes every region to disk in the background, and drops the packed tiles. The
+     * store must not be used afterwards, and nothing may be scanning with it.
+     */
+    public void close() {
+        Batch remaining = this.recording;
+        this.packedTiles.clear();
+
+        submitWrite(() -> {
+            this.write(remaining);
+
+            synchronized (this) {
+                for (ByteBuffer region : this.regions.values()) {
+                    if (region instanceof MappedByteBuffer) {
+                        ((MappedByteBuffer) region).force();
+                    }
+                }
+
+                this.regions.clear();
+            }
+        });
+    }
+
+    private static void submitWrite(Runnable task) {
+        synchronized (WRITE_LOCK) {
+            if (writer == null) {
+                writer = new Thread(TileStore::writeLoop, "Mini-Map Tile Writer");
+                writer.setDaemon(true);
+                writer.start();
+            }
+
+            WRITES.addLast(task);
+            WRITE_LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Runs the writes handed over by every store, on the writer thread.
+     */
+    private static void writeLoop() {
+        while (true) {
+            Runnable task;
+
+            synchronized (WRITE_LOCK) {
+                while (WRITES.isEmpty()) {
+                    try {
+                        WRITE_LOCK.wait();
+                    } catch (InterruptedException ignored) {
+                        /* Nothing interrupts the writer thread on purpose, keep writing */
+                    }
+                }
+
+                task = WRITES.pollFirst();
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                /* The next writes may still succeed, the thread must not die with them queued */
+                LOGGER.warn("Could not write mini-map tiles", e);
+            }
+        }
+    }
+
+    private void writeBatch() {
+        try {
+            this.write(this.writing);
+        } finally {
+            this.writerBusy = false;
+        }
+    }
+
+    private void write(Batch batch) {
+        /* No tile is that far out */
+        long lastTile = Long.MIN_VALUE;
+
+        for (int n = 0; n < batch.count; ++n) {
+            int sampleX = batch.x[n];
+            int sampleZ = batch.z[n];
+            int regionX = sampleX >> REGION_SHIFT;
+            int regionZ = sampleZ >> REGION_SHIFT;
+            long key = ChunkCoordIntPair.chunkXZ2Int(regionX, regionZ);
+
+            if (this.writeRegion == null || this.writeKey != key) {
+                this.writeRegion = this.region(key, regionX, regionZ, true);
+                this.writeKey = key;
+
+                if (this.writeRegion == null) {
+                    continue;
+                }
+            }
+
+            this.writeRegion.put(HEADER_SIZE + ((sampleZ & REGION_MASK) << REGION_SHIFT | sampleX & REGION_MASK),
+                    batch.colors[n]);
+            this.downsample(this.writeRegion, sampleX & REGION_MASK, sampleZ & REGION_MASK);
+
+            /* Samples of a batch come in rows, mostly within the tile of the sample before */
+            long tile = ChunkCoordIntPair.chunkXZ2Int(sampleX >> TILE_SHIFT, sampleZ >> TILE_SHIFT);
+
+            if (tile != lastTile) {
+                this.batchTiles.add(tile);
+                lastTile = tile;
+            }
+        }
+
+        /* After the samples are written, so a tile packed in between is dropped again */
+        synchronized (this) {
+            this.writtenTiles.addAll(this.batchTiles);
+
+            if (this.writtenTiles.size() > MAX_WRITTEN_TILES) {
+                this.writtenTiles.clear();
+                this.tooManyWritten = true;
+            }
+        }
+
+        this.batchTiles.clear();
+        batch.count = 0;
+        ++this.version;
+    }
+
+    /**
+     * Updates the samples of the zoomed out levels above a written level 0 sample, until one doesn't change.
+     */
+    private void downsample(ByteBuffer region, int x, int z) {
+        for (int level = 1; level < MapPyramid.LEVELS; ++level) {
+            int childSide = 1 << REGION_SHIFT - level + 1;
+            int child = LEVEL_OFFSETS[level - 1] + (z & -2) * childSide + (x & -2);
+
+            x >>= 1;
+            z >>= 1;
+
+            int index = LEVEL_OFFSETS[level] + (z << REGION_SHIFT - level | x);
+            byte current = region.get(index);
+            byte color = MapPyramid.downsample(region.get(child), region.get(child + 1), region.get(child + childSide),
+                    region.get(child + childSide + 1), current);
+
+            if (color == current) {
+                break;
+            }
+
+            region.put(index, color);
+        }
+    }
+
+    /**
+     * Maps the file of a region.
+     *
+     * @param create whether to create the file if it doesn't exist.
+     * @return the mapped region, or null if it has no file or can't be mapped.
+     */
+    private synchronized ByteBuffer region(long key, int regionX, int regionZ, boolean create) {
+        ByteBuffer region = this.regions.get(key);
+
+        if (region != null && (region != MISSING || !create)) {
+            return region == MISSING || region == FAILED ? null : region;
+        }
+
+        File file = new File(this.directory, "r." + regionX + "." + regionZ + ".map");
+
+        if (!create && !file.isFile()) {
+            this.regions.put(key, MISSING);
+            return null;
+        }
+
+        try {
+            if (create && !this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IOException("Could not create " + this.directory);
+            }
+
+            /* The mapping outlives the file handle */
+            try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+                boolean valid = access.length() == FILE_SIZE && access.readInt() == MAGIC;
+
+                if (!valid) {
+                    if (!create) {
+                        this.regions.put(key, MISSING);
+                        return null;
+                    }
+
+                    /* New or unreadable, start over with nothing explored */
+                    access.setLength(0);
+                    access.setLength(FILE_SIZE);
+                    access.seek(0);
+                    access.writeInt(MAGIC);
+                    access.writeInt(1 << REGION_SHIFT);
+                    access.writeInt(MapPyramid.LEVELS);
+                    ++this.created;
+                }
+
+                region = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not open mini-map region " + file, e);
+            region = FAILED;
+        }
+
+        this.regions.put(key, region);
+        return region == FAILED ? null : region;
+    }
+
+    /**
+     * Reads remembered colors for one thread, keeping the regions it read recently at hand.
+     */
+    class Reader {
+        /* Regions and levels read recently, so looking them up again doesn't box their keys. Null regions have no
+         * file */
+        private final long[] keys = new long[READER_REGIONS];
+        private final int[] levels = new int[READER_REGIONS];
+        private final ByteBuffer[] regions = new ByteBuffer[READER_REGIONS];
+        private final boolean[] valid = new boolean[READER_REGIONS];
+
+        /* The entry read last, and the one replaced next */
+        private int last;
+        private int next;
+        /* The store's count of created regions when regions without a file were last forgotten */
+        private int created;
+
+        /**
+         * @see TileStore#get(int, int, int)
+         */
+        byte get(int level, int sampleX, int sampleZ) {
+            int shift = REGION_SHIFT - level;
+            int regionX = sampleX >> shift;
+            int regionZ = sampleZ >> shift;
+            long key = ChunkCoordIntPair.chunkXZ2Int(regionX, regionZ);
+
+            if (!this.valid[this.last] || this.keys[this.last] != key || this.levels[this.last] != level) {
+                this.last = this.find(key, level, regionX, regionZ);
+            }
+
+            ByteBuffer region = this.regions[this.last];
+
+            if (region == null) {
+                return 0;
+            }
+
+            int mask = (1 << shift) - 1;
+            return region.get(LEVEL_OFFSETS[level] + ((sampleZ & mask) << shift | sampleX & mask));
+        }
+
+        /**
+         * @return the entry of the given region and level, looked up in the store if there isn't one.
+         */
+        private int find(long key, int level, int regionX, int regionZ) {
+            for (int entry = 0; entry < READER_REGIONS; ++entry) {
+                if (this.valid[entry] && this.keys[entry] == key && this.levels[entry] == level) {
+                    return entry;
+                }
+            }
+
+            int entry = this.next;
+            this.next = (entry + 1) % READER_REGIONS;
+
+            this.keys[entry] = key;
+            this.levels[entry] = level;
+            this.regions[entry] = TileStore.this.region(key, regionX, regionZ, false);
+            this.valid[entry] = true;
+            return entry;
+        }
+
+        /**
+         * Forgets the regions without a file if regions were created since. Mapped regions stay valid.
+         */
+        void invalidate() {
+            int created = TileStore.this.created;
+
+            if (created == this.created) {
+                return;
+            }
+
+            this.created = created;
+
+            for (int entry = 0; entry < READER_REGIONS; ++entry) {
+                if (this.regions[entry] == null) {
+                    this.valid[entry] = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Recorded color changes, in order.
+     */
+    private static class Batch {
+        private int[] x = new int[1024];
+        private int[] z = new int[1024];
+        private byte[] colors = new byte[1024];
+        private int count;
+
+        private void add(int sampleX, int sampleZ, byte color) {
+            if (this.count == this.x.length) {
+                this.x = Arrays.copyOf(this.x, this.count * 2);
+                this.z = Arrays.copyOf(this.z, this.count * 2);
+                this.colors = Arrays.copyOf(this.colors, this.count * 2);
+            }
+
+            this.x[this.count] = sampleX;
+            this.z[this.count] = sampleZ;
+            this.colors[this.count] = color;
+            ++this.count;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+/**
+ * Reads chunks directly from a loaded world. Must only be used on the thread that owns the world.
+ */
+public class WorldChunkSource implements MapChunkSource, MapChunk {
+    private final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+
+    private World world;
+    private Chunk chunk;
+
+    public WorldChunkSource setWorld(World world) {
+        this.world = world;
+        return this;
+    }
+
+    /**
+     * This source is its own chunk view, so the returned chunk changes with every call.
+     */
+    @Override
+    public MapChunk getChunk(int chunkX, int chunkZ) {
+        this.chunk = this.world.getChunkFromChunkCoords(chunkX, chunkZ);
+        return this;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.chunk.isEmpty();
+    }
+
+    @Override
+    public int getHeightValue(int x, int z) {
+        return this.chunk.getHeightValue(x, z);
+    }
+
+    @Override
+    public boolean isSectionEmpty(int section) {
+        ExtendedBlockStorage storage = this.chunk.getBlockStorageArray()[section];
+        return storage == null || storage.isEmpty();
+    }
+
+    @Override
+    public IBlockState getBlockState(int x, int y, int z) {
+        return this.chunk.getBlockState(this.pos.set(x, y, z));
+    }
+
+    @Override
+    public Block getBlock(int x, int y, int z) {
+        return this.chunk.getBlock(x, y, z);
+    }
+}
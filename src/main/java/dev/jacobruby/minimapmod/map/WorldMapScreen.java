@@ -0,0 +1,209 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.client.gui.GuiScreen;
+import net.minecraft.client.renderer.GlStateManager;
+import net.minecraft.client.renderer.Tessellator;
+import net.minecraft.client.renderer.WorldRenderer;
+import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
+import net.minecraft.client.settings.KeyBinding;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.MathHelper;
+import org.lwjgl.input.Mouse;
+import org.lwjgl.opengl.GL11;
+
+import java.io.IOException;
+
+/**
+ * Full-screen map of everything the player explored in the current dimension. Drag to pan, scroll to zoom.
+ * <p>
+ * The map is drawn from the {@link TileStore} of the mini-map, which holds the colors the mini-map scan shaded, so both
+ * maps always show the same. Tiles are loaded as they come into view, within a time budget per frame, so panning never
+ * stalls a frame on loading.
+ */
+public class WorldMapScreen extends GuiScreen {
+    /* Blocks per scaled pixel as a power of two, from 8 pixels per block out to 32 blocks per pixel */
+    private static final int MIN_ZOOM = -3;
+    private static final int MAX_ZOOM = 5;
+
+    /* Nanoseconds per frame that may be spent loading tiles */
+    private static final long LOAD_BUDGET = 2_000_000L;
+
+    private final MiniMapData mapData;
+    private final KeyBinding toggleKey;
+    private final WorldMapTiles tiles;
+
+    /* The block position shown at the center of the screen */
+    private double centerX, centerZ;
+    private int zoom;
+
+    private int dragX, dragY;
+
+    /**
+     * @param mapData the mini-map of the current dimension.
+     * @param toggleKey the key that opened the screen, which closes it again.
+     * @param tileCapacity the most tiles to keep as textures.
+     * @param packedCapacity the most tiles to keep packed, while the map is closed too.
+     */
+    public WorldMapScreen(MiniMapData mapData, KeyBinding toggleKey, int tileCapacity, int packedCapacity) {
+        this.mapData = mapData;
+        this.toggleKey = toggleKey;
+        this.tiles = new WorldMapTiles(tileCapacity, packedCapacity);
+    }
+
+    @Override
+    public void initGui() {
+        if (this.centerX == 0 && this.centerZ == 0) {
+            this.centerX = this.mc.thePlayer.posX;
+            this.centerZ = this.mc.thePlayer.posZ;
+        }
+    }
+
+    @Override
+    public boolean doesGuiPauseGame() {
+        /* The mini-map keeps scanning, so the map fills in while it's open */
+        return false;
+    }
+
+    @Override
+    public void drawScreen(int mouseX, int mouseY, float partialTicks) {
+        drawRect(0, 0, this.width, this.height, 0xFF000000);
+
+        TileStore store = this.mapData.getTileStore();
+        this.tiles.setStore(store);
+
+        if (store == null) {
+            this.drawCenteredString(this.fontRendererObj, "Explored areas aren't remembered, see the tileStore setting",
+                    this.width / 2, this.height / 2 - 4, 0xFFFFFFFF);
+            return;
+        }
+
+        double blocksPerPixel = Math.scalb(1D, this.zoom);
+
+        /* The level whose samples are a pixel wide, as far as the pyramid goes */
+        int level = MathHelper.clamp_int(this.zoom, 0, MapPyramid.LEVELS - 1);
+        int tileBlocks = WorldMapTiles.TILE_SIZE << level;
+
+        double left = this.centerX - this.width / 2D * blocksPerPixel;
+        double top = this.centerZ - this.height / 2D * blocksPerPixel;
+        int tileX1 = MathHelper.floor_double(left / tileBlocks);
+        int tileZ1 = MathHelper.floor_double(top / tileBlocks);
+        int tileX2 = MathHelper.floor_double((left + this.width * blocksPerPixel) / tileBlocks);
+        int tileZ2 = MathHelper.floor_double((top + this.height * blocksPerPixel) / tileBlocks);
+
+        /* Colors only change within the window the mini-map scans */
+        EntityPlayer player = this.mc.thePlayer;
+        int half = this.mapData.getResolution() / 2 + 1;
+        int scanX1 = MathHelper.floor_double(player.posX) - half;
+        int scanZ1 = MathHelper.floor_double(player.posZ) - half;
+        int scanX2 = MathHelper.floor_double(player.posX) + half;
+        int scanZ2 = MathHelper.floor_double(player.posZ) + half;
+
+        long deadline = System.nanoTime() + LOAD_BUDGET;
+
+        Tessellator tessellator = Tessellator.getInstance();
+        WorldRenderer worldRenderer = tessellator.getWorldRenderer();
+        GlStateManager.color(1F, 1F, 1F, 1F);
+
+        for (int tileZ = tileZ1; tileZ <= tileZ2; ++tileZ) {
+            for (int tileX = tileX1; tileX <= tileX2; ++tileX) {
+                int blockX = tileX * tileBlocks;
+                int blockZ = tileZ * tileBlocks;
+                boolean changing = blockX <= scanX2 && blockX + tileBlocks > scanX1 && blockZ <= scanZ2
+                        && blockZ + tileBlocks > scanZ1;
+
+                int texture = this.tiles.texture(level, tileX, tileZ, changing, deadline);
+
+                if (texture == 0) {
+                    continue;
+                }
+
+                double x1 = (blockX - left) / blocksPerPixel;
+                double y1 = (blockZ - top) / blocksPerPixel;
+                double x2 = x1 + tileBlocks / blocksPerPixel;
+                double y2 = y1 + tileBlocks / blocksPerPixel;
+
+                GlStateManager.bindTexture(texture);
+                worldRenderer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION_TEX);
+                worldRenderer.pos(x1, y2, 0D).tex(0D, 1D).endVertex();
+                worldRenderer.pos(x2, y2, 0D).tex(1D, 1D).endVertex();
+                worldRenderer.pos(x2, y1, 0D).tex(1D, 0D).endVertex();
+                worldRenderer.pos(x1, y1, 0D).tex(0D, 0D).endVertex();
+                tessellator.draw();
+            }
+        }
+
+        { /* Render player marker */
+            int x = (int) ((player.posX - left) / blocksPerPixel);
+            int y = (int) ((player.posZ - top) / blocksPerPixel);
+
+            drawRect(x - 2, y - 2, x + 2, y + 2, 0xFFFFFFFF);
+            drawRect(x - 1, y - 1, x + 1, y + 1, 0xFFFF3333);
+        }
+
+        { /* Render the block under the cursor and the scale */
+            int blockX = MathHelper.floor_double(left + mouseX * blocksPerPixel);
+            int blockZ = MathHelper.floor_double(top + mouseY * blocksPerPixel);
+            String scale = this.zoom >= 0 ? "1:" + (1 << this.zoom) : (1 << -this.zoom) + ":1";
+
+            this.drawString(this.fontRendererObj, blockX + ", " + blockZ + "   " + scale, 4, 4, 0xFFFFFFFF);
+        }
+
+        super.drawScreen(mouseX, mouseY, partialTicks);
+    }
+
+    @Override
+    public void handleMouseInput() throws IOException {
+        super.handleMouseInput();
+
+        int wheel = Mouse.getEventDWheel();
+
+        if (wheel == 0) {
+            return;
+        }
+
+        int zoom = MathHelper.clamp_int(this.zoom + (wheel < 0 ? 1 : -1), MIN_ZOOM, MAX_ZOOM);
+
+        /* Keep the block under the cursor where it is */
+        double mouseX = Mouse.getEventX() * this.width / (double) this.mc.displayWidth - this.width / 2D;
+        double mouseY = this.height / 2D - Mouse.getEventY() * this.height / (double) this.mc.displayHeight;
+        double before = Math.scalb(1D, this.zoom);
+        double after = Math.scalb(1D, zoom);
+
+        this.centerX += mouseX * (before - after);
+        this.centerZ += mouseY * (before - after);
+        this.zoom = zoom;
+    }
+
+    @Override
+    protected void mouseClicked(int mouseX, int mouseY, int mouseButton) throws IOException {
+        super.mouseClicked(mouseX, mouseY, mouseButton);
+
+        this.dragX = mouseX;
+        this.dragY = mouseY;
+    }
+
+    @Override
+    protected void mouseClickMove(int mouseX, int mouseY, int clickedMouseButton, long timeSinceLastClick) {
+        double blocksPerPixel = Math.scalb(1D, this.zoom);
+
+        this.centerX -= (mouseX - this.dragX) * blocksPerPixel;
+        this.centerZ -= (mouseY - this.dragY) * blocksPerPixel;
+        this.dragX = mouseX;
+        this.dragY = mouseY;
+    }
+
+    @Override
+    protected void keyTyped(char typedChar, int keyCode) throws IOException {
+        if (keyCode == this.toggleKey.getKeyCode()) {
+            this.mc.displayGuiScreen(null);
+            return;
+        }
+
+        super.keyTyped(typedChar, keyCode);
+    }
+
+    @Override
+    public void onGuiClosed() {
+        this.tiles.delete();
+    }
+}
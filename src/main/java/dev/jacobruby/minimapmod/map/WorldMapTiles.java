@@ -0,0 +1,121 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.client.renderer.texture.TextureUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Textures of the world map. A tile shows 128x128 samples of one {@link MapPyramid} level, loaded from a
+ * {@link TileStore} when it's first drawn, through the {@link PackedTiles} of the store. Tiles are kept in a least
+ * recently used cache, so tiles that stay off-screen are dropped first, and the textures of dropped tiles are reused
+ * for new ones. Must only be used on the client thread.
+ */
+class WorldMapTiles {
+    static final int TILE_SIZE = 128;
+
+    /* Tiles are cached by their tile coordinates, with the level in the low bits of x */
+    private static final int LEVEL_BITS = 3;
+
+    private final ChunkCache<Tile> cache;
+
+    /* Every tile created, so their textures can be deleted */
+    private final List<Tile> created = new ArrayList<>();
+
+    /* Samples and texture colors of the tile being loaded */
+    private final byte[] samples = new byte[TILE_SIZE * TILE_SIZE];
+    private final int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+
+    private final int packedCapacity;
+
+    private TileStore store;
+    private TileStore.Reader reader;
+
+    /**
+     * @param capacity the most tiles to keep, each takes 64 kilobytes of video memory.
+     * @param packedCapacity the most tiles the store keeps packed.
+     */
+    WorldMapTiles(int capacity, int packedCapacity) {
+        this.packedCapacity = packedCapacity;
+        this.cache = new ChunkCache<>(() -> {
+            Tile tile = new Tile();
+            this.created.add(tile);
+            return tile;
+        }, tile -> tile.loaded = false);
+
+        this.cache.setCapacity(capacity);
+    }
+
+    /**
+     * Switches to another store, which drops every tile.
+     */
+    void setStore(TileStore store) {
+        if (store != this.store) {
+            this.store = store;
+            this.reader = store != null ? store.newReader() : null;
+            this.cache.clear();
+
+            if (store != null) {
+                store.getPackedTiles().setCapacity(this.packedCapacity);
+            }
+        }
+    }
+
+    /**
+     * Looks up a tile, and loads it if it isn't loaded yet, or if it may have changed and the store wrote something since
+     * it was loaded, unless the {@code deadline} passed. Tiles that may have changed keep showing their old colors until
+     * they are loaded again.
+     *
+     * @param changing whether the tile overlaps the area the mini-map scans, the only place colors change.
+     * @param deadline the {@link System#nanoTime()} after which no more tiles are loaded.
+     * @return the texture of the tile, or 0 if it isn't loaded.
+     */
+    int texture(int level, int tileX, int tileZ, boolean changing, long deadline) {
+        if (this.store == null) {
+            return 0;
+        }
+
+        Tile tile = this.cache.getChunk(tileX << LEVEL_BITS | level, tileZ);
+        boolean load = !tile.loaded || changing && tile.version != this.store.getVersion();
+
+        if (load && System.nanoTime() < deadline) {
+            this.load(tile, level, tileX, tileZ);
+        }
+
+        return tile.loaded ? tile.texture : 0;
+    }
+
+    private void load(Tile tile, int level, int tileX, int tileZ) {
+        /* Read the version first, so writes during the load make the tile load again */
+        tile.version = this.store.getVersion();
+        this.store.getPackedTiles().decode(this.reader, level, tileX, tileZ, this.samples, this.pixels);
+
+        TextureUtil.uploadTexture(tile.texture, this.pixels, TILE_SIZE, TILE_SIZE);
+        tile.loaded = true;
+    }
+
+    /**
+     * Deletes the texture of every tile. The tiles must not be used afterwards.
+     */
+    void delete() {
+        for (Tile tile : this.created) {
+            TextureUtil.deleteTexture(tile.texture);
+        }
+
+        this.created.clear();
+        this.cache.clear();
+    }
+
+    private static class Tile {
+        private final int texture;
+        private boolean loaded;
+
+        /* The store version the tile was loaded at */
+        private int version;
+
+        private Tile() {
+            this.texture = TextureUtil.glGenTextures();
+            TextureUtil.allocateTexture(this.texture, TILE_SIZE, TILE_SIZE);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package dev.jacobruby.minimapmod.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the steady state of the map allocates nothing on the threads that scan: scanning as the viewer walks back
+ * and forth into unexplored ground, remembering the new colors in a tile store, and taking the texture colors like
+ * {@link MiniMapRenderer#postTextureData}, which needs the game. Scans go through {@link MiniMapData#replay}, which
+ * shares everything with {@code update} but finding the viewer's heights.
+ * <p>
+ * Asynchronous scans are measured on the scan thread as well as the client thread. The tile writer thread isn't
+ * measured, only handing it the changes is.
+ */
+public class AllocationTest {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final int RESOLUTION = 128;
+
+    /* How far the viewer walks before turning around, a few chunks so columns scroll in and chunks are reused */
+    private static final int WALK = 64;
+    /* How much further along each walk starts, so every walk scans columns no walk scanned before, in the same regions */
+    private static final int STRIDE = 32;
+    private static final int WARMUP_WALKS = 5;
+    /* Compiled code is shared by the tests and may still deoptimize once in a while, allocating as it does, so the
+     * walk that allocates least is checked. An allocation of the steady state shows in every walk */
+    private static final int MEASURED_WALKS = 3;
+
+    /* Chunks a frame and a walk span, so the caches are full after the first walk and reuse their entries */
+    private static final int CACHE_CHUNKS = (RESOLUTION + WALK + STRIDE) / 16 * (RESOLUTION / 16 + 2);
+
+    private final TestTerrain terrain = new TestTerrain();
+
+    private File directory;
+    private MiniMapData mapData;
+    private final MapFrame textureFrame = new MapFrame(RESOLUTION);
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("minimap").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (this.mapData != null) {
+            this.mapData.setTileDirectory(null);
+        }
+
+        MapScannerTest.delete(this.directory);
+    }
+
+    @Test
+    public void syncSurface() {
+        this.assertSteadyStateAllocatesNothing(false, false, false);
+    }
+
+    @Test
+    public void syncCave() {
+        this.assertSteadyStateAllocatesNothing(false, false, true);
+    }
+
+    @Test
+    public void directColors() {
+        this.assertSteadyStateAllocatesNothing(false, true, false);
+    }
+
+    @Test
+    public void async() {
+        this.assertSteadyStateAllocatesNothing(true, false, false);
+    }
+
+    @Test
+    public void asyncDirectColors() {
+        this.assertSteadyStateAllocatesNothing(true, true, true);
+    }
+
+    private void assertSteadyStateAllocatesNothing(boolean async, boolean direct, boolean cave) {
+        this.mapData = new MiniMapData();
+        this.mapData.setAsync(async);
+        this.mapData.setDirectColors(direct);
+        this.mapData.setScanBudget(0);
+        this.mapData.setResolution(RESOLUTION);
+        this.mapData.setSurfaceCacheChunks(CACHE_CHUNKS);
+        this.mapData.setCaveCacheChunks(CACHE_CHUNKS);
+        this.mapData.setTileDirectory(this.directory);
+
+        /* The first walks fill the caches and let the JIT settle */
+        for (int n = 0; n < WARMUP_WALKS; ++n) {
+            this.walk(n * STRIDE, cave);
+        }
+
+        long client = Thread.currentThread().getId();
+        long scanner = async ? scanThread() : client;
+
+        /* Reading the counters may allocate itself, depending on the JVM */
+        long start = allocatedBytes(client, scanner);
+        long overhead = allocatedBytes(client, scanner) - start;
+
+        int version = this.mapData.getTileStore().getVersion();
+        long allocated = Long.MAX_VALUE;
+
+        for (int n = WARMUP_WALKS; n < WARMUP_WALKS + MEASURED_WALKS; ++n) {
+            start = allocatedBytes(client, scanner);
+            this.walk(n * STRIDE, cave);
+            allocated = Math.min(allocated, allocatedBytes(client, scanner) - start - overhead);
+        }
+
+        assertEquals("bytes allocated by " + WALK * 2 + " updates", 0L, allocated);
+        this.awaitWrite(version);
+    }
+
+    /**
+     * @return the bytes allocated by the client thread, and by the scan thread if it's another.
+     */
+    private static long allocatedBytes(long client, long scanner) {
+        long bytes = THREADS.getThreadAllocatedBytes(client);
+        return scanner == client ? bytes : bytes + THREADS.getThreadAllocatedBytes(scanner);
+    }
+
+    private static long scanThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("Mini-Map Scanner")) {
+                return thread.getId();
+            }
+        }
+
+        throw new AssertionError("no scan thread");
+    }
+
+    /**
+     * Waits for the tile writer to write a batch after the measured walks began, so handing it changes was measured.
+     */
+    private void awaitWrite(int version) {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (this.mapData.getTileStore().getVersion() == version) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("no colors were written");
+            }
+
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Walks the viewer along x and back, a block per update.
+     */
+    private void walk(int start, boolean cave) {
+        for (int step = 0; step < WALK * 2; ++step) {
+            int x = start + (step < WALK ? step : WALK * 2 - step);
+
+            this.mapData.replay(this.terrain, x, 0, cave, 64, 80);
+            this.mapData.finishScan();
+            this.postTextureData();
+        }
+    }
+
+    private void postTextureData() {
+        int resolution = this.mapData.getResolution();
+        int x0 = this.mapData.xCenter - resolution / 2;
+        int z0 = this.mapData.zCenter - resolution / 2;
+        MapFrame frame = this.mapData.getFrame();
+
+        if (frame != null) {
+            this.textureFrame.copyDirty(frame);
+        } else {
+            this.textureFrame.setColors(this.mapData.colors, x0, z0);
+        }
+
+        this.textureFrame.clearDirty();
+    }
+}
@@ -0,0 +1,46 @@
+package dev.jacobruby.minimapmod.map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MapMarkersTest {
+    private static final int SPACING = 40;
+    private static final int EXTENT = 1600;
+
+    /**
+     * Waypoints every few blocks across an area wider than the grid, so cells hold waypoints of chunks that wrap into
+     * them. A query must find every waypoint within its circle exactly once, for circles smaller and larger than the
+     * grid.
+     */
+    @Test
+    public void queryFindsEveryMarkerInTheCircle() {
+        MapMarkers markers = new MapMarkers();
+
+        for (int x = -EXTENT; x <= EXTENT; x += SPACING) {
+            for (int z = -EXTENT; z <= EXTENT; z += SPACING) {
+                markers.addWaypoint(x + "," + z, x, z);
+            }
+        }
+
+        double[][] circles = {{0, 0, 100}, {7, -3, 300}, {-250, 410, 495}, {0, 0, 520}, {33, 65, 700}, {0, 0, 1400}};
+        int cap = (2 * EXTENT / SPACING + 1) * (2 * EXTENT / SPACING + 1);
+        double[] offsets = new double[cap * 2];
+        int[] kinds = new int[cap];
+
+        for (double[] circle : circles) {
+            int expected = 0;
+
+            for (int x = -EXTENT; x <= EXTENT; x += SPACING) {
+                for (int z = -EXTENT; z <= EXTENT; z += SPACING) {
+                    double offsetX = x + 0.5D - circle[0];
+                    double offsetZ = z + 0.5D - circle[1];
+                    expected += offsetX * offsetX + offsetZ * offsetZ <= circle[2] * circle[2] ? 1 : 0;
+                }
+            }
+
+            int count = markers.query(circle[0], circle[1], circle[2], 0F, cap, offsets, kinds);
+            assertEquals("markers within " + circle[2] + " of " + circle[0] + ", " + circle[1], expected, count);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package dev.jacobruby.minimapmod.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MapScannerTest {
+    private static final int RESOLUTION = 128;
+
+    private File directory;
+    private final MapScanner scanner = new MapScanner();
+    private final ScanJob job = new ScanJob();
+    private final byte[] colors = new byte[RESOLUTION * RESOLUTION];
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("minimap").toFile();
+
+        this.job.source = new TestTerrain();
+        this.job.resolution = RESOLUTION;
+        this.job.dirty = new int[MapScanner.cacheSize(RESOLUTION)];
+        this.job.ground = 64;
+        this.job.caveHeight = 64;
+        this.job.surfaceCacheChunks = 1024;
+        this.job.caveCacheChunks = 256;
+        this.moveTo(this.job, 0, 0);
+    }
+
+    private void moveTo(ScanJob job, int x, int z) {
+        job.xCenter = x;
+        job.zCenter = z;
+        job.originX = x / (1 << job.scale) - RESOLUTION / 2;
+        job.originZ = z / (1 << job.scale) - RESOLUTION / 2 - 1;
+    }
+
+    @After
+    public void tearDown() {
+        if (this.job.tiles != null) {
+            this.job.tiles.close();
+        }
+
+        delete(this.directory);
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Returning to a dimension opens its tile store again, which must not throw away the columns of its retained map.
+     */
+    @Test
+    public void reopenedTileStoreKeepsColumns() {
+        this.job.tiles = new TileStore(this.directory);
+        this.scanner.scan(this.job, this.colors, null);
+        assertTrue(this.job.scannedColumns > 0);
+
+        /* What MiniMapData.detach and attach do to the store and scanner */
+        this.job.tiles.close();
+        this.scanner.rebind(null);
+        this.job.tiles = new TileStore(this.directory);
+
+        this.scanner.scan(this.job, this.colors, null);
+        assertEquals(0, this.job.scannedColumns);
+        assertFalse(this.scanner.hasQueuedColumns());
+    }
+
+    @Test
+    public void otherTileStoreRescans() {
+        this.job.tiles = new TileStore(this.directory);
+        this.scanner.scan(this.job, this.colors, null);
+        this.job.tiles.close();
+
+        File other = new File(this.directory, "other");
+        this.job.tiles = new TileStore(other);
+        this.scanner.scan(this.job, this.colors, null);
+        assertEquals(MapScanner.cacheSize(RESOLUTION), this.job.scannedColumns);
+    }
+
+    @Test
+    public void scrolledScansMatchFullScans() {
+        this.assertScrolledScansMatchFullScans(false);
+    }
+
+    @Test
+    public void scrolledCaveScansMatchFullScans() {
+        this.job.cave = true;
+        this.job.caveHeight = 90;
+        this.assertScrolledScansMatchFullScans(true);
+    }
+
+    /**
+     * Without a tile store zoomed out maps sample one column per pixel.
+     */
+    @Test
+    public void scrolledStrideScansMatchFullScans() {
+        this.job.scale = 1;
+        this.moveTo(this.job, 0, 0);
+        this.assertScrolledScansMatchFullScans(false);
+    }
+
+    /**
+     * Scrolls the map around, across the wrap of the column cache in both directions, and compares every frame with a
+     * full scan of a new scanner at the same origin.
+     */
+    private void assertScrolledScansMatchFullScans(boolean cave) {
+        int[][] moves = {{1, 0}, {0, 1}, {-1, 0}, {0, -1}, {3, -2}, {-5, 7}, {17, 33}, {-40, -90}, {100, 0}};
+        byte[] expected = new byte[RESOLUTION * RESOLUTION];
+        int x = 0;
+        int z = 0;
+
+        this.scanner.scan(this.job, this.colors, null);
+
+        for (int step = 0; step < moves.length + RESOLUTION + 2; ++step) {
+            if (step < moves.length) {
+                x += moves[step][0];
+                z += moves[step][1];
+            } else {
+                /* One row at a time, until row 0 of the cache, the row above the map, went all the way around */
+                ++z;
+            }
+
+            this.moveTo(this.job, x, z);
+            this.scanner.scan(this.job, this.colors, null);
+
+            ScanJob fresh = this.freshJob(cave);
+            this.moveTo(fresh, x, z);
+            new MapScanner().scan(fresh, expected, null);
+
+            assertArrayEquals("colors after moving to " + x + ", " + z, expected, this.colors);
+        }
+    }
+
+    private ScanJob freshJob(boolean cave) {
+        ScanJob job = new ScanJob();
+        job.source = this.job.source;
+        job.resolution = RESOLUTION;
+        job.scale = this.job.scale;
+        job.dirty = new int[MapScanner.cacheSize(RESOLUTION)];
+        job.cave = cave;
+        job.ground = this.job.ground;
+        job.caveHeight = this.job.caveHeight;
+        job.surfaceCacheChunks = this.job.surfaceCacheChunks;
+        job.caveCacheChunks = this.job.caveCacheChunks;
+        return job;
+    }
+
+    @Test
+    public void parallelRefreshMatchesSerialScan() {
+        this.assertParallelRefreshMatchesSerialScan(false);
+    }
+
+    @Test
+    public void parallelCaveRefreshMatchesSerialScan() {
+        this.job.cave = true;
+        this.job.caveHeight = 90;
+        this.assertParallelRefreshMatchesSerialScan(true);
+    }
+
+    /**
+     * Scans a concurrent source, which refreshes in stripes on the refresh pool whenever every column is queued: on the
+     * first scan and after each jump further than the map. Every frame must equal the serial scan of the same terrain.
+     */
+    private void assertParallelRefreshMatchesSerialScan(boolean cave) {
+        assertTrue("the refresh pool needs several processors", MapScanner.REFRESH_POOL != null);
+
+        int[][] positions = {{0, 0}, {1000, -300}, {1003, -298}, {-5000, 7000}, {40, 40}};
+        ScanJob parallel = this.freshJob(cave);
+        parallel.source = new TestTerrain(true);
+        MapScanner parallelScanner = new MapScanner();
+        byte[] parallelColors = new byte[RESOLUTION * RESOLUTION];
+
+        for (int[] position : positions) {
+            this.moveTo(this.job, position[0], position[1]);
+            this.scanner.scan(this.job, this.colors, null);
+
+            this.moveTo(parallel, position[0], position[1]);
+            parallelScanner.scan(parallel, parallelColors, null);
+
+            assertArrayEquals("colors at " + position[0] + ", " + position[1], this.colors, parallelColors);
+        }
+    }
+
+    /**
+     * The cave scan answers from section bitmaps, and must find the same block, depth and flags as the block by block
+     * walk for every column, through caves, liquids, overhangs and empty sections, down into the void and up into walls.
+     */
+    @Test
+    public void caveScanMatchesBlockWalk() {
+        /* Viewer heights and cave heights, from inside the ground to above the islands and below the viewer */
+        int[][] heights = {{64, 80}, {40, 90}, {10, 30}, {15, 14}, {70, 70}, {100, 128}, {118, 130}, {0, 254},
+                {30, 254}, {-5, 60}, {130, 140}, {18, 50}};
+        CaveColumns caves = new CaveColumns();
+        int walls = 0;
+        int voids = 0;
+        int liquids = 0;
+
+        for (int chunkX = -4; chunkX < 4; ++chunkX) {
+            for (int chunkZ = -4; chunkZ < 4; ++chunkZ) {
+                MapChunk chunk = this.job.source.getChunk(chunkX, chunkZ);
+
+                for (int[] height : heights) {
+                    caves.clear();
+
+                    for (int z = 0; z < 16; ++z) {
+                        for (int x = 0; x < 16; ++x) {
+                            int expected = this.scanner.scanBlocks(chunk, x, z, true, height[0], height[1]);
+                            int packed = this.scanner.scanCave(chunk, caves, x, z, height[0], height[1]);
+
+                            assertEquals("column " + (chunkX << 4 | x) + ", " + (chunkZ << 4 | z) + " from "
+                                    + height[0] + " to " + height[1], expected, packed);
+
+                            walls += (packed & MapScanner.PACKED_WALL) != 0 ? 1 : 0;
+                            voids += (packed & MapScanner.PACKED_VOID) != 0 ? 1 : 0;
+                            liquids += (packed >> 9 & 511) != 0 ? 1 : 0;
+                        }
+                    }
+                }
+            }
+        }
+
+        assertTrue("walls were scanned", walls > 0);
+        assertTrue("the void was reached", voids > 0);
+        assertTrue("liquids were scanned", liquids > 0);
+    }
+}
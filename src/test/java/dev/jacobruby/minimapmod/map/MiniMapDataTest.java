@@ -0,0 +1,60 @@
+package dev.jacobruby.minimapmod.map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MiniMapDataTest {
+    private final TestTerrain terrain = new TestTerrain();
+
+    /**
+     * An interrupted client thread must still wait for the scan, which writes the buffers the next scan is given.
+     */
+    @Test
+    public void interruptedWaitFinishesTheScan() {
+        MiniMapData reference = new MiniMapData();
+        reference.setScanBudget(0);
+        reference.replay(this.terrain, 0, 0, false, 64, 64);
+
+        MiniMapData mapData = new MiniMapData();
+        mapData.setAsync(true);
+        mapData.setScanBudget(0);
+        mapData.replay(this.terrain, 0, 0, false, 64, 64);
+
+        Thread.currentThread().interrupt();
+        mapData.finishScan();
+
+        /* Clears the interrupt, so it doesn't leak into other tests */
+        assertTrue(Thread.interrupted());
+        assertArrayEquals(reference.colors, mapData.colors);
+    }
+
+    /**
+     * Maps share the scan thread, a map submitting right after another must not replace the other's job.
+     */
+    @Test(timeout = 10000)
+    public void mapsScanningTogetherBothFinish() {
+        MiniMapData reference = new MiniMapData();
+        reference.setScanBudget(0);
+        reference.replay(this.terrain, 0, 0, false, 64, 64);
+
+        MiniMapData first = new MiniMapData();
+        MiniMapData second = new MiniMapData();
+
+        for (MiniMapData mapData : new MiniMapData[]{first, second}) {
+            mapData.setAsync(true);
+            mapData.setScanBudget(0);
+        }
+
+        for (int n = 0; n < 20; ++n) {
+            first.replay(this.terrain, 0, 0, false, 64, 64);
+            second.replay(this.terrain, 0, 0, false, 64, 64);
+            first.finishScan();
+            second.finishScan();
+        }
+
+        assertArrayEquals(reference.colors, first.colors);
+        assertArrayEquals(reference.colors, second.colors);
+    }
+}
@@ -0,0 +1,143 @@
+package dev.jacobruby.minimapmod.map;
+
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.init.Bootstrap;
+
+/**
+ * Rolling hills with lakes, caves, lava, overhangs, bottomless pits and floating islands, computed from the block
+ * position rather than stored, so the tests can scan anywhere without a Minecraft world and without allocating.
+ * Sections 5, 6 and everything above 7 are empty, so scans cross empty sections between the ground and the islands.
+ */
+class TestTerrain implements MapChunkSource {
+    static {
+        /* Registers the blocks and their map colors */
+        Bootstrap.register();
+    }
+
+    private static final IBlockState AIR = Blocks.air.getDefaultState();
+    private static final IBlockState STONE = Blocks.stone.getDefaultState();
+    private static final IBlockState GRASS = Blocks.grass.getDefaultState();
+    private static final IBlockState SAND = Blocks.sand.getDefaultState();
+    private static final IBlockState WATER = Blocks.water.getDefaultState();
+    private static final IBlockState LAVA = Blocks.lava.getDefaultState();
+
+    private static final int SEA_LEVEL = 62;
+    private static final int LAVA_LEVEL = 20;
+    private static final int ISLAND_BOTTOM = 116, ISLAND_TOP = 119;
+
+    private final boolean concurrent;
+
+    /* Reused for every request unless the terrain is read concurrently */
+    private final Chunk chunk = new Chunk();
+
+    /**
+     * @param concurrent whether chunks may be requested by several threads at once, each request gets its own chunk
+     *                   then.
+     */
+    TestTerrain(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    TestTerrain() {
+        this(false);
+    }
+
+    @Override
+    public MapChunk getChunk(int chunkX, int chunkZ) {
+        Chunk chunk = this.concurrent ? new Chunk() : this.chunk;
+        chunk.chunkX = chunkX;
+        chunk.chunkZ = chunkZ;
+        return chunk;
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return this.concurrent;
+    }
+
+    /**
+     * @return a repeatable pseudo random number for the given position.
+     */
+    private static int hash(int x, int y, int z) {
+        int hash = x * 73856093 ^ y * 83492791 ^ z * 19349663;
+        hash ^= hash >>> 13;
+        hash *= 0x5BD1E995;
+        return hash ^ hash >>> 15;
+    }
+
+    private static int height(int x, int z) {
+        return 64 + (int) (6 * Math.sin(x / 19D) + 5 * Math.cos(z / 23D));
+    }
+
+    static IBlockState block(int x, int y, int z) {
+        if (y < 0 || y > 255) {
+            return AIR;
+        }
+
+        if (y >= ISLAND_BOTTOM && y <= ISLAND_TOP) {
+            return ((x >> 4 ^ z >> 4) & 3) == 0 && (x & 15) < 11 ? STONE : AIR;
+        }
+
+        /* Bottomless pits, where scans fall through to the void */
+        if ((x >> 3 & 7) == 3 && (z >> 3 & 7) == 3) {
+            return AIR;
+        }
+
+        int height = height(x, z);
+
+        if (y > height) {
+            /* Slabs a few blocks over the ground, overhangs without a cave below */
+            if (y >= height + 3 && y <= height + 4 && (x >> 2) % 5 == 0 && (z & 7) < 5) {
+                return STONE;
+            }
+
+            return y <= SEA_LEVEL ? WATER : AIR;
+        }
+
+        if (y == height) {
+            return height < SEA_LEVEL ? SAND : GRASS;
+        }
+
+        if (y >= 3 && y < height - 3 && (hash(x >> 2, y >> 2, z >> 2) & 7) < 2) {
+            return y < LAVA_LEVEL ? LAVA : AIR;
+        }
+
+        return STONE;
+    }
+
+    private static class Chunk implements MapChunk {
+        private int chunkX, chunkZ;
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public int getHeightValue(int x, int z) {
+            int worldX = this.chunkX << 4 | x;
+            int worldZ = this.chunkZ << 4 | z;
+
+            for (int y = ISLAND_TOP; y > 0; --y) {
+                IBlockState state = block(worldX, y, worldZ);
+
+                if (state.getBlock().getLightOpacity() != 0) {
+                    return y + 1;
+                }
+            }
+
+            return 0;
+        }
+
+        @Override
+        public boolean isSectionEmpty(int section) {
+            return section == 5 || section == 6 || section > 7;
+        }
+
+        @Override
+        public IBlockState getBlockState(int x, int y, int z) {
+            return block(this.chunkX << 4 | x, y, this.chunkZ << 4 | z);
+        }
+    }
+}